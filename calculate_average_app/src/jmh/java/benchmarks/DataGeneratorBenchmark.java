@@ -0,0 +1,58 @@
+package benchmarks;
+
+import helpers.DataGenerator;
+import helpers.DatasetSpec;
+import helpers.Workspace;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class DataGeneratorBenchmark {
+    @Param({ "1000", "100000", "1000000" })
+    public int records;
+
+    private Workspace workspace;
+    private DataGenerator dataGenerator;
+
+    @Setup
+    public void setUp() {
+        workspace = new Workspace();
+        dataGenerator = new DataGenerator(workspace);
+        dataGenerator.withSeed(42L);
+        dataGenerator.withoutCache();
+    }
+
+    @TearDown
+    public void tearDown() {
+        workspace.delete();
+    }
+
+    @Benchmark
+    public long generateRecords() {
+        dataGenerator.generateRecords(records);
+        return dataGenerator.getBytesWritten();
+    }
+
+    // A million users under Zipf skew: the alias table's random reads against the uniform default above
+    @Benchmark
+    public long generateSkewedRecords() {
+        dataGenerator.generateRecords(new DatasetSpec().withRows(records).withKeys(1_000_000).withZipfKeys(1.1));
+        return dataGenerator.getBytesWritten();
+    }
+}
@@ -0,0 +1,60 @@
+package benchmarks;
+
+import helpers.ResultAnalyser;
+import helpers.Workspace;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class ResultAnalyserBenchmark {
+    @Param({ "100", "10000", "1000000" })
+    public int users;
+
+    private Workspace workspace;
+
+    @Setup
+    public void setUp() throws IOException {
+        workspace = new Workspace();
+        // Same layout as calculate_averages.sh: header, then records separated by a literal "\n"
+        try (Writer writer = Files.newBufferedWriter(workspace.getRoot().resolve("averages.csv"),
+                StandardCharsets.UTF_8)) {
+            writer.write("user,month,average_spending\n");
+            for (int i = 0; i < users; i++) {
+                writer.write("user" + i + ",ALL," + (100 + i % 1900) + ".0\\n");
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        workspace.delete();
+    }
+
+    @Benchmark
+    public ResultAnalyser loadRecords() {
+        // A fresh analyser parses the whole file on its first lookup
+        ResultAnalyser resultAnalyser = new ResultAnalyser(workspace);
+        resultAnalyser.containsRecord("user0", "ALL", 100.0);
+        return resultAnalyser;
+    }
+}
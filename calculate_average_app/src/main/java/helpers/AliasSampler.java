@@ -0,0 +1,68 @@
+package helpers;
+
+import java.util.SplittableRandom;
+
+// Vose's alias method: a skewed draw costs one column pick and one biased coin, whatever the number of keys
+public class AliasSampler implements DatasetSpec.KeySampler {
+    private final float[] probability;
+    private final int[] alias;
+
+    private AliasSampler(float[] probability, int[] alias) {
+        this.probability = probability;
+        this.alias = alias;
+    }
+
+    // Rank k is drawn with weight 1 / (k + 1)^exponent, so key 0 is the hottest and 0 gives a uniform draw
+    public static AliasSampler zipf(int keyCount, double exponent) {
+        if (keyCount < 1) {
+            throw new IllegalArgumentException("Zipf needs at least one key, got " + keyCount);
+        }
+        double totalWeight = 0;
+        for (int k = 1; k <= keyCount; k++) {
+            totalWeight += Math.pow(k, -exponent);
+        }
+
+        // Float columns keep the table at 8 bytes per key, so tens of millions of keys fit in a default heap
+        float[] probability = new float[keyCount];
+        int[] alias = new int[keyCount];
+        int[] work = new int[keyCount];
+        int small = 0;
+        int large = keyCount;
+        for (int k = 0; k < keyCount; k++) {
+            probability[k] = (float) (Math.pow(k + 1, -exponent) * keyCount / totalWeight);
+            alias[k] = k;
+            if (probability[k] < 1) {
+                work[small++] = k;
+            } else {
+                work[--large] = k;
+            }
+        }
+
+        // Each column under 1 is topped up from one over 1, which then goes back on whichever list it now fits
+        while (small > 0 && large < keyCount) {
+            int less = work[--small];
+            int more = work[large++];
+            alias[less] = more;
+            probability[more] = (probability[more] + probability[less]) - 1;
+            if (probability[more] < 1) {
+                work[small++] = more;
+            } else {
+                work[--large] = more;
+            }
+        }
+        // Whatever is left is only off 1 by rounding
+        while (small > 0) {
+            probability[work[--small]] = 1;
+        }
+        while (large < keyCount) {
+            probability[work[large++]] = 1;
+        }
+        return new AliasSampler(probability, alias);
+    }
+
+    @Override
+    public int next(SplittableRandom random) {
+        int column = random.nextInt(probability.length);
+        return random.nextDouble() < probability[column] ? column : alias[column];
+    }
+}
@@ -0,0 +1,347 @@
+package helpers;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// In-process equivalent of calculate_averages.sh: same per-user averages, computed from a memory-mapped file
+public class AverageCalculator {
+    private static final int MAX_CHUNK_SIZE = 1 << 30;
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18 };
+    // Up to here a mantissa and a power of ten are both exact doubles, so one division rounds as strtod does
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    public static class Average {
+        public final String user;
+        private double sum;
+        private long count;
+
+        Average(String user) {
+            this.user = user;
+        }
+
+        public double getSum() {
+            return sum;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getAverage() {
+            return sum / count;
+        }
+
+        public String getFormattedAverage() {
+            return format(getAverage());
+        }
+    }
+
+    private final int parallelism;
+    private long bytesProcessed;
+    private long rowsProcessed;
+    private long elapsedNanos;
+
+    public AverageCalculator() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public AverageCalculator(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    // awk's printf rounds the exact binary value half-to-even, which BigDecimal reproduces
+    public static String format(double value) {
+        return new BigDecimal(value).setScale(1, RoundingMode.HALF_EVEN).toPlainString();
+    }
+
+    public Map<String, Average> calculate(Path input) {
+        long startTime = System.nanoTime();
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "average-calculator");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            List<Future<UserTable>> futures = new ArrayList<>();
+            for (long[] chunk : splitOnLines(channel)) {
+                futures.add(executor.submit(() -> aggregate(channel, chunk[0], chunk[1])));
+            }
+
+            Map<String, Average> averages = new TreeMap<>();
+            long rows = 0;
+            for (Future<UserTable> future : futures) {
+                UserTable table = future.get();
+                table.mergeInto(averages);
+                rows += table.rows;
+            }
+
+            bytesProcessed = channel.size();
+            rowsProcessed = rows;
+            elapsedNanos = System.nanoTime() - startTime;
+            return averages;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read transactions file: " + input, e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to calculate averages for " + input, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while calculating averages for " + input, e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void writeAverages(Path input, Path output) {
+        writeAverages(input, output, false);
+    }
+
+    // Unrounded averages are written in full double precision, so a comparison can bound the script's rounding
+    public void writeAverages(Path input, Path output, boolean unrounded) {
+        Map<String, Average> averages = calculate(input);
+        try (Writer writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            writer.write("user,month,average_spending\n");
+            for (Average average : averages.values()) {
+                // The script separates records with a literal "\n", not a line break
+                String value = unrounded ? Double.toString(average.getAverage()) : average.getFormattedAverage();
+                writer.write(average.user + ",ALL," + value + "\\n");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write averages file: " + output, e);
+        }
+    }
+
+    private List<long[]> splitOnLines(FileChannel channel) throws IOException {
+        long size = channel.size();
+        // awk skips the header (NR > 1)
+        long start = nextLineStart(channel, 0);
+
+        int chunkCount = (int) Math.max(parallelism, (size - start) / MAX_CHUNK_SIZE + 1);
+        long chunkSize = Math.max(1, (size - start) / chunkCount);
+
+        List<long[]> chunks = new ArrayList<>();
+        while (start < size) {
+            long end = start + chunkSize >= size ? size : nextLineStart(channel, start + chunkSize);
+            chunks.add(new long[] { start, end });
+            start = end;
+        }
+        return chunks;
+    }
+
+    private static long nextLineStart(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        long size = channel.size();
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static UserTable aggregate(FileChannel channel, long start, long end) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        UserTable table = new UserTable();
+        int limit = buffer.limit();
+        int position = 0;
+
+        while (position < limit) {
+            int keyStart = position;
+            int hash = 0;
+            byte b = 0;
+            while (position < limit && (b = buffer.get(position)) != ',' && b != '\n') {
+                hash = 31 * hash + b;
+                position++;
+            }
+            int keyEnd = position;
+
+            // Skip date and category to reach the amount ($4)
+            int field = 1;
+            while (position < limit && field < 4 && (b = buffer.get(position)) != '\n') {
+                if (b == ',') {
+                    field++;
+                }
+                position++;
+            }
+
+            double amount = 0;
+            if (field == 4) {
+                boolean negative = false;
+                if (position < limit && buffer.get(position) == '-') {
+                    negative = true;
+                    position++;
+                }
+                int numberStart = position;
+                long mantissa = 0;
+                int scale = -1;
+                boolean exact = true;
+                while (position < limit && (b = buffer.get(position)) != '\n' && b != ',') {
+                    if (b >= '0' && b <= '9') {
+                        long next = mantissa * 10 + (b - '0');
+                        if (next <= MAX_EXACT_MANTISSA && scale < POWERS_OF_TEN.length - 1) {
+                            mantissa = next;
+                            if (scale >= 0) {
+                                scale++;
+                            }
+                        } else {
+                            exact = false;
+                        }
+                    } else if (b == '.' && scale < 0) {
+                        scale = 0;
+                    } else {
+                        // Like awk, only the leading numeric prefix counts
+                        break;
+                    }
+                    position++;
+                }
+                amount = exact ? mantissa / POWERS_OF_TEN[Math.max(scale, 0)]
+                        : parseDouble(buffer, numberStart, position);
+                if (negative) {
+                    amount = -amount;
+                }
+            }
+
+            while (position < limit && buffer.get(position) != '\n') {
+                position++;
+            }
+            position++;
+
+            table.add(buffer, keyStart, keyEnd, hash, amount);
+        }
+        return table;
+    }
+
+    // Amounts too long for the long mantissa, which awk still reads in full as doubles
+    private static double parseDouble(ByteBuffer buffer, int start, int end) {
+        byte[] number = new byte[end - start];
+        buffer.get(start, number);
+        return Double.parseDouble(new String(number, StandardCharsets.US_ASCII));
+    }
+
+    public long getBytesProcessed() {
+        return bytesProcessed;
+    }
+
+    public long getRowsProcessed() {
+        return rowsProcessed;
+    }
+
+    public long getElapsedTimeMs() {
+        return elapsedNanos / 1_000_000;
+    }
+
+    public double getBytesPerSecond() {
+        return elapsedNanos == 0 ? 0 : bytesProcessed * 1_000_000_000.0 / elapsedNanos;
+    }
+
+    // Open-addressing table keyed by the raw user bytes, so no String is created per row
+    private static class UserTable {
+        private byte[][] keys = new byte[64][];
+        private int[] hashes = new int[64];
+        private double[] sums = new double[64];
+        private long[] counts = new long[64];
+        private int size;
+        private long rows;
+
+        void add(ByteBuffer buffer, int keyStart, int keyEnd, int hash, double amount) {
+            rows++;
+            int mask = keys.length - 1;
+            int slot = mix(hash) & mask;
+            while (keys[slot] != null) {
+                if (hashes[slot] == hash && matches(keys[slot], buffer, keyStart, keyEnd)) {
+                    sums[slot] += amount;
+                    counts[slot]++;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            byte[] key = new byte[keyEnd - keyStart];
+            buffer.get(keyStart, key);
+            keys[slot] = key;
+            hashes[slot] = hash;
+            sums[slot] = amount;
+            counts[slot] = 1;
+            if (++size * 2 > keys.length) {
+                resize();
+            }
+        }
+
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean matches(byte[] key, ByteBuffer buffer, int keyStart, int keyEnd) {
+            if (key.length != keyEnd - keyStart) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != buffer.get(keyStart + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void resize() {
+            byte[][] oldKeys = keys;
+            int[] oldHashes = hashes;
+            double[] oldSums = sums;
+            long[] oldCounts = counts;
+
+            keys = new byte[oldKeys.length * 2][];
+            hashes = new int[keys.length];
+            sums = new double[keys.length];
+            counts = new long[keys.length];
+            int mask = keys.length - 1;
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int slot = mix(oldHashes[i]) & mask;
+                    while (keys[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    hashes[slot] = oldHashes[i];
+                    sums[slot] = oldSums[i];
+                    counts[slot] = oldCounts[i];
+                }
+            }
+        }
+
+        void mergeInto(Map<String, Average> averages) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    String user = new String(keys[i], StandardCharsets.UTF_8);
+                    Average average = averages.computeIfAbsent(user, Average::new);
+                    average.sum += sums[i];
+                    average.count += counts[i];
+                }
+            }
+        }
+    }
+}
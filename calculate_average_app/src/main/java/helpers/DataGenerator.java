@@ -3,35 +3,53 @@ package helpers;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Random;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.util.HexFormat;
+import java.util.List;
 
 public class DataGenerator {
-    private static final String DIR_PATH = Paths
-            .get(System.getProperty("user.dir"), "calculate_average_app", "script", "data").toString();
-    private static final String FILE_PATH = Paths
-            .get(System.getProperty("user.dir"), "calculate_average_app", "script", "data", "transactions.csv")
-            .toString();
-
     private static final String[] USERS = {"alice", "bob", "charlie", "tom"};
     private static final String[] CATEGORIES = {"food", "transport", "beauty"};
 
+    private static final String HEADER = "user,date,category,amount\n";
+    private static final LocalDate FIRST_DATE = LocalDate.of(2025, 1, 1);
+    private static final int DATE_DAYS = 365;
+    private static final int MAX_RECORD_LENGTH = 96;
+
+    private final String dirPath;
+    private final String filePath;
+    private final DatasetCache cache = new DatasetCache();
+
+    private long seed = System.nanoTime();
+    private boolean seedFixed;
+    private boolean cacheEnabled = true;
+    private boolean cacheHit;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private long bytesWritten;
+    private long generationTimeNanos;
+
+    public DataGenerator(Workspace workspace) {
+        this.dirPath = workspace.getDataDir().toString();
+        this.filePath = workspace.dataFile("transactions.csv");
+    }
+
     private void createDir() {
-        File directory = new File(DIR_PATH);
+        File directory = new File(dirPath);
         if (!directory.exists()) {
             directory.mkdirs();
         }
     }
 
-    private String generateRandomDate() {
-        Random random = new Random();
-        int month = random.nextInt(12) + 1; // [0,11] +1 -> [1, 12]
-        int day = random.nextInt(28) + 1; // [1,29]
-        return String.format("2025-%02d-%02d", month, day);
-    }
-
     private void writeData(String data, boolean append) {
-        try (FileWriter writer = new FileWriter(FILE_PATH, append)) {
+        DatasetCache.detach(Paths.get(filePath));
+        try (FileWriter writer = new FileWriter(filePath, append)) {
             writer.write(data);
 
         } catch (IOException e) {
@@ -39,26 +57,92 @@ public class DataGenerator {
         }
     }
 
-    private String generateRecordString(int num) {
-        StringBuilder stringBuilder = new StringBuilder();
-        stringBuilder.append("user,date,category,amount\n");
-
-        Random random = new Random();
+    private static void putUser(ByteBuffer buffer, int user) {
+        if (user < USERS.length) {
+            ShardedFileWriter.putAscii(buffer, USERS[user]);
+        } else {
+            ShardedFileWriter.putAscii(buffer, "user");
+            ShardedFileWriter.putNumber(buffer, user);
+        }
+    }
 
-        for (int i = 0; i < num; i++) {
-            String user = USERS[random.nextInt(USERS.length)];
-            String category = CATEGORIES[random.nextInt(CATEGORIES.length)];
-            String date = generateRandomDate();
-            double amount = 1900 * random.nextDouble() + 100;
-            stringBuilder.append(String.format("%s,%s,%s,%.2f\n", user, date, category, amount));
+    private static void putCategory(ByteBuffer buffer, int category) {
+        if (category < CATEGORIES.length) {
+            ShardedFileWriter.putAscii(buffer, CATEGORIES[category]);
+        } else {
+            ShardedFileWriter.putAscii(buffer, "category");
+            ShardedFileWriter.putNumber(buffer, category);
         }
-        return stringBuilder.toString();
     }
 
+    // The default shape: four users, three categories, amounts of 100-2000 spread over 2025
     public void generateRecords(int num) {
+        generateRecords(new DatasetSpec()
+                .withRows(num)
+                .withKeys(USERS.length)
+                .withCategories(CATEGORIES.length)
+                .withDates(FIRST_DATE, DATE_DAYS));
+    }
+
+    public void generateRecords(DatasetSpec spec) {
+        if (spec.hasSeed()) {
+            withSeed(spec.getSeed());
+        }
         createDir();
-        String generatedRecords = generateRecordString(num);
-        writeData(generatedRecords, false);
+        long startTime = System.nanoTime();
+        Path file = Paths.get(filePath);
+
+        // Only a fixed seed makes the dataset reproducible, and so worth keeping between runs
+        if (seedFixed && cacheEnabled) {
+            // Parallelism is keyed too, so the reproducibility checks still compare two independent generations
+            String key = DatasetCache.key(List.of(DataGenerator.class, ShardedFileWriter.class, DatasetSpec.class,
+                    AliasSampler.class), "transactions", spec, seed, parallelism);
+            cacheHit = cache.materialise(key, List.of(file), () -> writeRecords(file, spec));
+            bytesWritten = file.toFile().length();
+        } else {
+            cacheHit = false;
+            writeRecords(file, spec);
+        }
+        generationTimeNanos = System.nanoTime() - startTime;
+    }
+
+    // Everything a row needs is resolved up front, so rendering a row only draws random numbers and copies bytes
+    private void writeRecords(Path file, DatasetSpec spec) {
+        DatasetSpec.KeySampler users = spec.keySampler(spec.getKeys());
+        int categories = spec.getCategories();
+        byte[][] dates = spec.renderDates();
+        long minCents = Math.round(spec.getMinAmount() * 100);
+        double centsRange = (spec.getMaxAmount() - spec.getMinAmount()) * 100;
+
+        // Each shard is rendered into its own buffer and joined into the file with positional writes
+        bytesWritten = new ShardedFileWriter(parallelism, MAX_RECORD_LENGTH).write(file, HEADER, spec.getRows(), seed,
+                (row, random, buffer) -> {
+                    putUser(buffer, users.next(random));
+                    buffer.put((byte) ',');
+                    buffer.put(dates[random.nextInt(dates.length)]);
+                    buffer.put((byte) ',');
+                    putCategory(buffer, random.nextInt(categories));
+                    buffer.put((byte) ',');
+
+                    long cents = minCents + Math.round(centsRange * random.nextDouble());
+                    ShardedFileWriter.putNumber(buffer, cents / 100);
+                    buffer.put((byte) '.');
+                    ShardedFileWriter.putTwoDigits(buffer, (int) (cents % 100));
+                    buffer.put((byte) '\n');
+                }, "");
+    }
+
+    public void withSeed(long seed) {
+        this.seed = seed;
+        this.seedFixed = true;
+    }
+
+    public void withoutCache() {
+        this.cacheEnabled = false;
+    }
+
+    public void withParallelism(int parallelism) {
+        this.parallelism = parallelism;
     }
 
     public void withRecord(String user, String date, String category, double amount) {
@@ -66,4 +150,38 @@ public class DataGenerator {
 
         writeData(record, true);
     }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    public String checksum() {
+        try (InputStream input = Files.newInputStream(Paths.get(filePath))) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to checksum transactions file", e);
+        }
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getGenerationTimeMs() {
+        return generationTimeNanos / 1_000_000;
+    }
+
+    public double getBytesPerSecond() {
+        return generationTimeNanos == 0 ? 0 : bytesWritten * 1_000_000_000.0 / generationTimeNanos;
+    }
 }
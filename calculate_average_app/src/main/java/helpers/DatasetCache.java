@@ -0,0 +1,221 @@
+package helpers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+// Finished datasets keyed by generator, parameters and seed; a hit is linked into the workspace instead of regenerated
+public class DatasetCache {
+    public static final String DIR_PROPERTY = "dataset.cache.dir";
+    public static final String MAX_BYTES_PROPERTY = "dataset.cache.max.bytes";
+    private static final Path DEFAULT_DIR = Paths.get(System.getProperty("user.home"), ".crazy-tests", "datasets");
+    private static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024 * 1024;
+    private static final String STAGING_SUFFIX = ".staging-";
+
+    private static final Map<Class<?>, byte[]> CLASS_DIGESTS = new ConcurrentHashMap<>();
+
+    private final Path directory;
+    private final long maxBytes;
+
+    public DatasetCache() {
+        this(Paths.get(System.getProperty(DIR_PROPERTY, DEFAULT_DIR.toString())),
+                Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+    }
+
+    public DatasetCache(Path directory, long maxBytes) {
+        this.directory = directory.toAbsolutePath();
+        this.maxBytes = maxBytes;
+    }
+
+    // The generators' bytecode is part of the key, so changing how rows are rendered never serves stale fixtures
+    public static String key(List<Class<?>> generators, Object... parameters) {
+        MessageDigest digest = newDigest();
+        for (Class<?> generator : generators) {
+            digest.update(CLASS_DIGESTS.computeIfAbsent(generator, DatasetCache::digestClass));
+        }
+        for (Object parameter : parameters) {
+            digest.update(String.valueOf(parameter).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Returns true when the files came from the cache and the generator did not run
+    public boolean materialise(String key, List<Path> files, Runnable generator) {
+        Path entry = directory.resolve(key);
+        if (Files.isDirectory(entry)) {
+            try {
+                for (Path file : files) {
+                    link(entry.resolve(file.getFileName().toString()), file);
+                }
+                Files.setLastModifiedTime(entry, FileTime.from(Instant.now()));
+                return true;
+            } catch (IOException e) {
+                // Evicted by another run while linking: fall through and regenerate
+            }
+        }
+
+        generator.run();
+        store(key, entry, files);
+        return false;
+    }
+
+    // Gives the file its own inode before an in-place write, so the cached copy it is linked to stays intact
+    public static void detach(Path file) {
+        try {
+            if (!Files.isRegularFile(file) || ((Number) Files.getAttribute(file, "unix:nlink")).intValue() < 2) {
+                return;
+            }
+            Path copy = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".detached");
+            transfer(file, copy);
+            Files.move(copy, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (UnsupportedOperationException e) {
+            // No link counts on this file system, so nothing can be shared either
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to detach " + file + " from the dataset cache", e);
+        }
+    }
+
+    private void store(String key, Path entry, List<Path> files) {
+        try {
+            Files.createDirectories(directory);
+            // Entries appear under their final name in one rename, so concurrent runs never see half a dataset
+            Path staging = Files.createTempDirectory(directory, key + STAGING_SUFFIX);
+            try {
+                for (Path file : files) {
+                    transfer(file, staging.resolve(file.getFileName().toString()));
+                }
+                Files.move(staging, entry, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                if (!Files.isDirectory(entry)) {
+                    throw e;
+                }
+                // Another run stored the same dataset first
+            } finally {
+                deleteRecursively(staging);
+            }
+            evict();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to store dataset in cache: " + entry, e);
+        }
+    }
+
+    // Drops the least recently used entries until the cache fits its size budget
+    private void evict() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (Stream<Path> listing = Files.list(directory)) {
+            listing.filter(path -> Files.isDirectory(path) && !path.getFileName().toString().contains(STAGING_SUFFIX))
+                    .forEach(entries::add);
+        }
+
+        Map<Path, Long> sizes = new HashMap<>();
+        long totalBytes = 0;
+        for (Path entry : entries) {
+            long size = sizeOf(entry);
+            sizes.put(entry, size);
+            totalBytes += size;
+        }
+        if (totalBytes <= maxBytes) {
+            return;
+        }
+
+        entries.sort(Comparator.comparing(DatasetCache::lastModified));
+        for (Path entry : entries) {
+            if (totalBytes <= maxBytes) {
+                break;
+            }
+            deleteRecursively(entry);
+            totalBytes -= sizes.get(entry);
+        }
+    }
+
+    private static void link(Path cached, Path target) throws IOException {
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, cached);
+        } catch (UnsupportedOperationException | IOException e) {
+            // Hard links cannot cross file systems; a kernel-side copy is the next cheapest thing
+            transfer(cached, target);
+        }
+    }
+
+    private static void transfer(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    private static long sizeOf(Path entry) throws IOException {
+        long size = 0;
+        try (Stream<Path> files = Files.list(entry)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                size += Files.size(file);
+            }
+        }
+        return size;
+    }
+
+    private static FileTime lastModified(Path entry) {
+        try {
+            return Files.getLastModifiedTime(entry);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static byte[] digestClass(Class<?> generator) {
+        MessageDigest digest = newDigest();
+        try (InputStream bytecode = generator.getResourceAsStream(generator.getSimpleName() + ".class")) {
+            if (bytecode != null) {
+                digest.update(bytecode.readAllBytes());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read bytecode of " + generator.getName(), e);
+        }
+        digest.update(generator.getName().getBytes(StandardCharsets.UTF_8));
+        return digest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
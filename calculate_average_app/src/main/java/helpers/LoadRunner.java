@@ -0,0 +1,220 @@
+package helpers;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Runs K copies of the script at once over the same input, as several jobs sharing one box would
+public class LoadRunner {
+    public enum OutputMode {
+        // Every instance writes averages.csv next to the same script copy
+        SHARED,
+        // Every instance runs its own script copy in a directory of its own
+        ISOLATED
+    }
+
+    public static class Instance {
+        public final int index;
+        public final int exitCode;
+        public final long latencyNanos;
+        public final long cpuTimeMs;
+        public final long peakRssBytes;
+        public final Path resultFile;
+
+        Instance(int index, int exitCode, long latencyNanos, long cpuTimeMs, long peakRssBytes, Path resultFile) {
+            this.index = index;
+            this.exitCode = exitCode;
+            this.latencyNanos = latencyNanos;
+            this.cpuTimeMs = cpuTimeMs;
+            this.peakRssBytes = peakRssBytes;
+            this.resultFile = resultFile;
+        }
+    }
+
+    public static class Report {
+        public final OutputMode mode;
+        public final long rowsPerInstance;
+        public final long soloLatencyNanos;
+        public final long wallTimeNanos;
+        public final long totalCpuTimeMs;
+        public final List<Instance> instances;
+        public final LatencyStatistics latency;
+        // Result file -> how it differs from the solo run's; empty when every output is intact
+        public final Map<Path, String> corruptions;
+
+        Report(OutputMode mode, long rowsPerInstance, long soloLatencyNanos, long wallTimeNanos, long totalCpuTimeMs,
+                List<Instance> instances, Map<Path, String> corruptions) {
+            this.mode = mode;
+            this.rowsPerInstance = rowsPerInstance;
+            this.soloLatencyNanos = soloLatencyNanos;
+            this.wallTimeNanos = wallTimeNanos;
+            this.totalCpuTimeMs = totalCpuTimeMs;
+            this.instances = instances;
+            this.corruptions = corruptions;
+            this.latency = new LatencyStatistics();
+            for (Instance instance : instances) {
+                latency.record(instance.latencyNanos);
+            }
+        }
+
+        public boolean isCorrupted() {
+            return !corruptions.isEmpty();
+        }
+
+        public boolean allSucceeded() {
+            return instances.stream().allMatch(instance -> instance.exitCode == 0);
+        }
+
+        public double getRowsPerSecond() {
+            return wallTimeNanos == 0 ? 0 : rowsPerInstance * instances.size() * 1_000_000_000.0 / wallTimeNanos;
+        }
+
+        // Share of all cores the instances kept busy while the wave ran; near 1 means the box was the bottleneck
+        public double getCpuSaturation() {
+            double availableMs = wallTimeNanos / 1_000_000.0 * Runtime.getRuntime().availableProcessors();
+            return availableMs == 0 ? 0 : totalCpuTimeMs / availableMs;
+        }
+
+        // How much slower the median instance ran than the same script with the box to itself
+        public double getSlowdown() {
+            return soloLatencyNanos == 0 ? 0 : (double) latency.percentileNanos(50) / soloLatencyNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder(String.format(
+                    "%d %s instances x %d rows in %.1fms: %.0f rows/s, %dms CPU, saturation %.0f%% of %d cores, "
+                            + "latency %s, %.2fx the solo run (%.1fms)",
+                    instances.size(), mode, rowsPerInstance, wallTimeNanos / 1_000_000.0, getRowsPerSecond(),
+                    totalCpuTimeMs, getCpuSaturation() * 100, Runtime.getRuntime().availableProcessors(), latency,
+                    getSlowdown(), soloLatencyNanos / 1_000_000.0));
+            for (Instance instance : instances) {
+                if (instance.exitCode != 0) {
+                    report.append("\n  instance ").append(instance.index).append(" exited with ")
+                            .append(instance.exitCode);
+                }
+            }
+            corruptions.forEach((file, difference) -> report.append("\n  corrupted ").append(file).append(": ")
+                    .append(difference));
+            return report.toString();
+        }
+    }
+
+    private final Workspace workspace;
+
+    public LoadRunner(Workspace workspace) {
+        this.workspace = workspace;
+    }
+
+    public Report run(int instanceCount, OutputMode mode) {
+        String input = workspace.dataFile("transactions.csv");
+
+        // The script alone first: its output is what every instance must reproduce, its latency the yardstick
+        ScriptRunner solo = new ScriptRunner(workspace.child("solo"));
+        solo.withoutHistory();
+        solo.executeScript(input);
+        if (solo.getExitCode() != 0) {
+            throw new IllegalStateException("Script failed on its own with exit code " + solo.getExitCode() + ": "
+                    + solo.getErrorMessage());
+        }
+
+        List<ScriptRunner> runners = new ArrayList<>();
+        for (int i = 0; i < instanceCount; i++) {
+            Workspace directory = mode == OutputMode.SHARED ? workspace : workspace.child("instance-" + i);
+            ScriptRunner runner = new ScriptRunner(directory);
+            runner.withoutHistory();
+            runners.add(runner);
+        }
+
+        // One platform thread per instance: each only blocks on its process, and Java 17 has no virtual threads
+        ExecutorService executor = Executors.newFixedThreadPool(instanceCount);
+        CountDownLatch ready = new CountDownLatch(instanceCount);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        long wallTimeNanos;
+        long totalCpuTimeMs;
+        try {
+            for (ScriptRunner runner : runners) {
+                futures.add(executor.submit(() -> {
+                    ready.countDown();
+                    start.await();
+                    runner.executeScript(input);
+                    return null;
+                }));
+            }
+            // The gate opens once every thread is parked on it, so no instance gets a head start
+            ready.await();
+            long startCpuTimeMs = ProcessSampler.reapedChildrenCpuTimeMs();
+            long startTime = System.nanoTime();
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            wallTimeNanos = System.nanoTime() - startTime;
+            // Samples every 10ms miss the last moments of short runs; the kernel's account of reaped children does not
+            totalCpuTimeMs = startCpuTimeMs < 0 ? -1 : ProcessSampler.reapedChildrenCpuTimeMs() - startCpuTimeMs;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Concurrent script run failed", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<Instance> instances = new ArrayList<>();
+        Map<Path, String> corruptions = new LinkedHashMap<>();
+        Set<Path> compared = new HashSet<>();
+        for (int i = 0; i < runners.size(); i++) {
+            ScriptRunner runner = runners.get(i);
+            instances.add(new Instance(i, runner.getExitCode(), runner.getExecutionTimeNanos(),
+                    runner.getCpuTimeMs(), runner.getMemoryUsedBytes(), runner.getResultFile()));
+            // Instances sharing a path are judged once, on what is left in it
+            if (compared.add(runner.getResultFile())) {
+                String difference = difference(runner.getResultFile(), solo.getResultFile());
+                if (difference != null) {
+                    corruptions.put(runner.getResultFile(), difference);
+                }
+            }
+        }
+        if (totalCpuTimeMs < 0) {
+            totalCpuTimeMs = instances.stream().mapToLong(instance -> instance.cpuTimeMs).sum();
+        }
+        return new Report(mode, countRows(input), solo.getExecutionTimeNanos(), wallTimeNanos, totalCpuTimeMs,
+                instances, corruptions);
+    }
+
+    // Byte-identical is the common case and costs one pass; only a mismatch pays for a record-level diff
+    private String difference(Path actual, Path expected) {
+        try {
+            if (!Files.exists(actual)) {
+                return "missing";
+            }
+            if (Files.mismatch(actual, expected) == -1) {
+                return null;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to compare " + actual + " with " + expected, e);
+        }
+        OutputDiff.Result diff = new OutputDiff(workspace.getRoot())
+                .withEscapedNewlines()
+                .withRowOrder()
+                .compare(actual, expected);
+        // Interleaved writes can reorder or split records without changing any of them
+        return diff.isIdentical() ? "same records, different bytes" : diff.toString();
+    }
+
+    private static long countRows(String file) {
+        // Without the header
+        return Math.max(0, LineCounter.count(Paths.get(file)) - 1);
+    }
+}
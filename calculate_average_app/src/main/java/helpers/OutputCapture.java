@@ -0,0 +1,154 @@
+package helpers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// Drains one process stream on its own thread, keeping only the first and last lines
+public class OutputCapture {
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+    // Only a bounded capture caps its lines too; an unbounded one keeps every byte the script wrote
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+
+    private final int headLines;
+    private final int tailLines;
+    private final int maxLineBytes;
+    private final List<String> head = new ArrayList<>();
+    private final ArrayDeque<String> tail = new ArrayDeque<>();
+    private long lineCount;
+    private long byteCount;
+    private long cutLineCount;
+    private boolean lineCut;
+    private IOException failure;
+    private Thread thread;
+
+    public OutputCapture(int headLines, int tailLines) {
+        this.headLines = headLines;
+        this.tailLines = tailLines;
+        this.maxLineBytes = headLines == UNBOUNDED ? Integer.MAX_VALUE : MAX_LINE_BYTES;
+    }
+
+    public OutputCapture drain(InputStream stream, String name) {
+        thread = new Thread(() -> readLines(stream), "capture-" + name);
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    public void await() throws InterruptedException {
+        thread.join();
+    }
+
+    private void readLines(InputStream stream) {
+        byte[] buffer = new byte[8192];
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        try (InputStream input = stream) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                byteCount += read;
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        appendBounded(line, buffer, start, i - start);
+                        addLine(line);
+                        start = i + 1;
+                    }
+                }
+                appendBounded(line, buffer, start, read - start);
+            }
+            if (line.size() > 0) {
+                addLine(line);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private void appendBounded(ByteArrayOutputStream line, byte[] buffer, int offset, int length) {
+        int room = maxLineBytes - line.size();
+        if (length > room) {
+            lineCut = true;
+        }
+        line.write(buffer, offset, Math.max(0, Math.min(room, length)));
+    }
+
+    private void addLine(ByteArrayOutputStream line) {
+        lineCount++;
+        if (lineCut) {
+            cutLineCount++;
+        }
+        boolean keepInHead = head.size() < headLines;
+        if (keepInHead || tailLines > 0) {
+            byte[] bytes = line.toByteArray();
+            // A cut can land inside a character, which is dropped rather than decoded into a replacement character
+            int length = lineCut ? completeCharacters(bytes) : bytes.length;
+            String text = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            if (keepInHead) {
+                head.add(text);
+            } else {
+                if (tail.size() == tailLines) {
+                    tail.removeFirst();
+                }
+                tail.addLast(text);
+            }
+        }
+        line.reset();
+        lineCut = false;
+    }
+
+    // The length of the longest prefix that ends on a UTF-8 character boundary
+    private static int completeCharacters(byte[] bytes) {
+        int start = bytes.length;
+        // Continuation bytes are 10xxxxxx; step back over them to the byte that starts the last character
+        while (start > 0 && (bytes[start - 1] & 0xC0) == 0x80) {
+            start--;
+        }
+        if (start == 0) {
+            return bytes.length;
+        }
+        int lead = bytes[start - 1] & 0xFF;
+        int characterLength = lead < 0x80 ? 1 : lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : 2;
+        return bytes.length - (start - 1) >= characterLength ? bytes.length : start - 1;
+    }
+
+    public String getText() {
+        StringBuilder text = new StringBuilder();
+        for (String line : head) {
+            text.append(line).append("\n");
+        }
+        long omitted = lineCount - head.size() - tail.size();
+        if (omitted > 0) {
+            text.append("... ").append(omitted).append(" lines omitted ...\n");
+        }
+        for (String line : tail) {
+            text.append(line).append("\n");
+        }
+        return text.toString();
+    }
+
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    // Lines longer than the cap, kept only up to it; always 0 for an unbounded capture
+    public long getCutLineCount() {
+        return cutLineCount;
+    }
+
+    public boolean isTruncated() {
+        return lineCount > head.size() + tail.size() || cutLineCount > 0;
+    }
+
+    public IOException getFailure() {
+        return failure;
+    }
+}
@@ -0,0 +1,436 @@
+package helpers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.function.BiPredicate;
+import java.util.stream.Stream;
+
+// Compares two record files in bounded memory: sorted runs are spilled to disk when needed, then merged in one pass
+public class OutputDiff {
+    private static final int DEFAULT_MAX_RECORDS_IN_MEMORY = 1_000_000;
+    private static final int DEFAULT_MAX_REPORTED_DIFFERENCES = 10;
+
+    public static class Result {
+        public final String expectedHeader;
+        public final String actualHeader;
+        public final long matched;
+        public final long mismatched;
+        public final long missing;
+        public final long extra;
+        private final List<String> differences;
+
+        Result(String expectedHeader, String actualHeader, long matched, long mismatched, long missing, long extra,
+                List<String> differences) {
+            this.expectedHeader = expectedHeader;
+            this.actualHeader = actualHeader;
+            this.matched = matched;
+            this.mismatched = mismatched;
+            this.missing = missing;
+            this.extra = extra;
+            this.differences = differences;
+        }
+
+        public boolean isIdentical() {
+            return Objects.equals(expectedHeader, actualHeader) && mismatched == 0 && missing == 0 && extra == 0;
+        }
+
+        public List<String> getDifferences() {
+            return new ArrayList<>(differences);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder(String.format("%d matched, %d mismatched, %d missing, %d extra",
+                    matched, mismatched, missing, extra));
+            if (!Objects.equals(expectedHeader, actualHeader)) {
+                report.append("\n  header: expected '").append(expectedHeader).append("' but was '")
+                        .append(actualHeader).append("'");
+            }
+            for (String difference : differences) {
+                report.append("\n  ").append(difference);
+            }
+            long unreported = mismatched + missing + extra - differences.size();
+            if (unreported > 0) {
+                report.append("\n  ... ").append(unreported).append(" more");
+            }
+            return report.toString();
+        }
+    }
+
+    // Yields one record per call and null once exhausted
+    private interface RecordSource extends Closeable {
+        String next() throws IOException;
+    }
+
+    private final Path workDirectory;
+    private int keyFields = 1;
+    private boolean escapedNewlines;
+    private boolean rowOrder;
+    private BiPredicate<String, String> recordEquality = String::equals;
+    private int maxRecordsInMemory = DEFAULT_MAX_RECORDS_IN_MEMORY;
+    private int maxReportedDifferences = DEFAULT_MAX_REPORTED_DIFFERENCES;
+
+    public OutputDiff(Path workDirectory) {
+        this.workDirectory = workDirectory;
+    }
+
+    // Records are paired by their first keyFields comma-separated fields
+    public OutputDiff withKeyFields(int keyFields) {
+        this.keyFields = keyFields;
+        return this;
+    }
+
+    // calculate_averages.sh separates records with a literal "\n" rather than a line break
+    public OutputDiff withEscapedNewlines() {
+        this.escapedNewlines = true;
+        return this;
+    }
+
+    // Compares row by row instead of sorting, for outputs whose order is part of the contract
+    public OutputDiff withRowOrder() {
+        this.rowOrder = true;
+        return this;
+    }
+
+    public OutputDiff withRecordEquality(BiPredicate<String, String> recordEquality) {
+        this.recordEquality = recordEquality;
+        return this;
+    }
+
+    public OutputDiff withMaxRecordsInMemory(int maxRecordsInMemory) {
+        this.maxRecordsInMemory = Math.max(1, maxRecordsInMemory);
+        return this;
+    }
+
+    public OutputDiff withMaxReportedDifferences(int maxReportedDifferences) {
+        this.maxReportedDifferences = maxReportedDifferences;
+        return this;
+    }
+
+    public Result compare(Path actualFile, Path expectedFile) {
+        try (RecordSource actual = new FileRecords(actualFile, escapedNewlines);
+                RecordSource expected = new FileRecords(expectedFile, escapedNewlines)) {
+            return compare(actual, expected);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to compare " + actualFile + " with " + expectedFile, e);
+        }
+    }
+
+    public Result compare(Path actualFile, String expectedHeader, Iterator<String> expectedRecords) {
+        RecordSource expected = new RecordSource() {
+            private boolean headerReturned;
+
+            @Override
+            public String next() {
+                if (!headerReturned) {
+                    headerReturned = true;
+                    return expectedHeader;
+                }
+                return expectedRecords.hasNext() ? expectedRecords.next() : null;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        try (RecordSource actual = new FileRecords(actualFile, escapedNewlines)) {
+            return compare(actual, expected);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to compare " + actualFile + " with the expected records", e);
+        }
+    }
+
+    private Result compare(RecordSource actual, RecordSource expected) throws IOException {
+        String actualHeader = actual.next();
+        String expectedHeader = expected.next();
+        if (rowOrder) {
+            return compareRows(expectedHeader, actualHeader, actual, expected);
+        }
+
+        Path spillDirectory = Files.createTempDirectory(workDirectory, "diff-");
+        try (RecordSource sortedActual = sort(actual, spillDirectory.resolve("actual"));
+                RecordSource sortedExpected = sort(expected, spillDirectory.resolve("expected"))) {
+            return mergeDiff(expectedHeader, actualHeader, sortedActual, sortedExpected);
+        } finally {
+            deleteRecursively(spillDirectory);
+        }
+    }
+
+    private Result compareRows(String expectedHeader, String actualHeader, RecordSource actual,
+            RecordSource expected) throws IOException {
+        Tally tally = new Tally();
+        long row = 1;
+        String actualRecord = actual.next();
+        String expectedRecord = expected.next();
+        while (actualRecord != null || expectedRecord != null) {
+            row++;
+            if (expectedRecord == null) {
+                tally.extra("row " + row + ": " + actualRecord);
+            } else if (actualRecord == null) {
+                tally.missing("row " + row + ": " + expectedRecord);
+            } else if (recordEquality.test(actualRecord, expectedRecord)) {
+                tally.matched++;
+            } else {
+                tally.mismatched("row " + row + ": expected '" + expectedRecord + "' but was '" + actualRecord + "'");
+            }
+            actualRecord = actual.next();
+            expectedRecord = expected.next();
+        }
+        return tally.toResult(expectedHeader, actualHeader);
+    }
+
+    private Result mergeDiff(String expectedHeader, String actualHeader, RecordSource actual, RecordSource expected)
+            throws IOException {
+        Tally tally = new Tally();
+        String actualRecord = actual.next();
+        String expectedRecord = expected.next();
+        while (actualRecord != null || expectedRecord != null) {
+            // Records pair up by key alone, so a changed value is a mismatch rather than a missing and an extra row
+            int order = actualRecord == null ? 1
+                    : expectedRecord == null ? -1 : key(actualRecord).compareTo(key(expectedRecord));
+            if (order < 0) {
+                tally.extra(actualRecord);
+                actualRecord = actual.next();
+            } else if (order > 0) {
+                tally.missing(expectedRecord);
+                expectedRecord = expected.next();
+            } else {
+                if (recordEquality.test(actualRecord, expectedRecord)) {
+                    tally.matched++;
+                } else {
+                    tally.mismatched("expected '" + expectedRecord + "' but was '" + actualRecord + "'");
+                }
+                actualRecord = actual.next();
+                expectedRecord = expected.next();
+            }
+        }
+        return tally.toResult(expectedHeader, actualHeader);
+    }
+
+    private class Tally {
+        private final List<String> differences = new ArrayList<>();
+        private long matched;
+        private long mismatched;
+        private long missing;
+        private long extra;
+
+        void mismatched(String description) {
+            mismatched++;
+            report(description);
+        }
+
+        void missing(String record) {
+            missing++;
+            report("missing: " + record);
+        }
+
+        void extra(String record) {
+            extra++;
+            report("extra: " + record);
+        }
+
+        private void report(String description) {
+            if (differences.size() < maxReportedDifferences) {
+                differences.add(description);
+            }
+        }
+
+        Result toResult(String expectedHeader, String actualHeader) {
+            return new Result(expectedHeader, actualHeader, matched, mismatched, missing, extra, differences);
+        }
+    }
+
+    private int compareKeys(String left, String right) {
+        int order = key(left).compareTo(key(right));
+        return order != 0 ? order : left.compareTo(right);
+    }
+
+    private String key(String record) {
+        int end = -1;
+        for (int field = 0; field < keyFields; field++) {
+            end = record.indexOf(',', end + 1);
+            if (end < 0) {
+                return record;
+            }
+        }
+        return record.substring(0, end);
+    }
+
+    // Inputs that fit in memory are sorted there; larger ones become sorted runs merged through a priority queue
+    private RecordSource sort(RecordSource source, Path runPrefix) throws IOException {
+        Comparator<String> order = this::compareKeys;
+        List<Path> runs = new ArrayList<>();
+        List<String> chunk = new ArrayList<>();
+        String record;
+        while ((record = source.next()) != null) {
+            chunk.add(record);
+            if (chunk.size() == maxRecordsInMemory) {
+                runs.add(writeRun(chunk, order, runPrefix, runs.size()));
+                chunk.clear();
+            }
+        }
+
+        if (runs.isEmpty()) {
+            chunk.sort(order);
+            Iterator<String> sorted = chunk.iterator();
+            return new RecordSource() {
+                @Override
+                public String next() {
+                    return sorted.hasNext() ? sorted.next() : null;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+        if (!chunk.isEmpty()) {
+            runs.add(writeRun(chunk, order, runPrefix, runs.size()));
+        }
+        return new MergedRuns(runs, order);
+    }
+
+    private static Path writeRun(List<String> chunk, Comparator<String> order, Path runPrefix, int index)
+            throws IOException {
+        chunk.sort(order);
+        Path run = runPrefix.resolveSibling(runPrefix.getFileName() + "-" + index);
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(run, StandardCharsets.UTF_8), 1 << 16)) {
+            for (String record : chunk) {
+                writer.write(record);
+                writer.write('\n');
+            }
+        }
+        return run;
+    }
+
+    private static class MergedRuns implements RecordSource {
+        private final List<FileRecords> readers = new ArrayList<>();
+        private final PriorityQueue<RunHead> heads;
+
+        MergedRuns(List<Path> runs, Comparator<String> order) throws IOException {
+            heads = new PriorityQueue<>((left, right) -> order.compare(left.record, right.record));
+            for (Path run : runs) {
+                FileRecords reader = new FileRecords(run, false);
+                readers.add(reader);
+                advance(reader);
+            }
+        }
+
+        private void advance(FileRecords reader) throws IOException {
+            String record = reader.next();
+            if (record != null) {
+                heads.add(new RunHead(record, reader));
+            }
+        }
+
+        @Override
+        public String next() throws IOException {
+            RunHead head = heads.poll();
+            if (head == null) {
+                return null;
+            }
+            advance(head.reader);
+            return head.record;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (FileRecords reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private static class RunHead {
+        final String record;
+        final FileRecords reader;
+
+        RunHead(String record, FileRecords reader) {
+            this.record = record;
+            this.reader = reader;
+        }
+    }
+
+    // Splits on '\n' only, so a stray '\r' stays part of the record and shows up as a difference
+    private static class FileRecords implements RecordSource {
+        private final InputStream input;
+        private final boolean escapedNewlines;
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        private boolean escaped;
+        private boolean exhausted;
+
+        FileRecords(Path file, boolean escapedNewlines) throws IOException {
+            this.input = new BufferedInputStream(Files.newInputStream(file), 1 << 16);
+            this.escapedNewlines = escapedNewlines;
+        }
+
+        @Override
+        public String next() throws IOException {
+            while (!exhausted) {
+                int b = input.read();
+                if (b == -1) {
+                    exhausted = true;
+                    if (escaped) {
+                        record.write('\\');
+                    }
+                    return record.size() > 0 ? take() : null;
+                }
+                if (escaped) {
+                    escaped = false;
+                    if (b == 'n') {
+                        if (record.size() > 0) {
+                            return take();
+                        }
+                        continue;
+                    }
+                    record.write('\\');
+                }
+
+                if (b == '\\' && escapedNewlines) {
+                    escaped = true;
+                } else if (b == '\n') {
+                    // An empty line is a real row in line-based outputs, but only a separator artefact otherwise
+                    if (record.size() > 0 || !escapedNewlines) {
+                        return take();
+                    }
+                } else {
+                    record.write(b);
+                }
+            }
+            return null;
+        }
+
+        private String take() {
+            String text = record.toString(StandardCharsets.UTF_8);
+            record.reset();
+            return text;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package helpers;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Append-only log of every script run; earlier runs of the same script on the same dataset size form the baseline
+public class PerformanceHistory {
+    public static final String FILE_PROPERTY = "perf.history.file";
+    private static final Path DEFAULT_FILE = Paths.get(System.getProperty("user.home"), ".crazy-tests",
+            "perf-history.csv");
+    private static final String HEADER = "timestamp,script,script_sha256,dataset_lines,dataset_bytes,git_commit,"
+            + "exit_code,elapsed_ns,cpu_ms,peak_rss_bytes\n";
+
+    private static final int BASELINE_WINDOW = 30;
+    private static final int MIN_BASELINE_RUNS = 5;
+    // A slowdown must be both improbable under the baseline's noise and large enough to matter
+    private static final double SIGNIFICANT_Z_SCORE = 3.0;
+    private static final double MIN_RELATIVE_SLOWDOWN = 0.1;
+
+    private static final Map<Path, List<Run>> LOADED_RUNS = new ConcurrentHashMap<>();
+    // A JVM may hold a file lock only once, so appends from its own threads queue here before taking it
+    private static final Map<Path, Object> APPEND_MONITORS = new ConcurrentHashMap<>();
+    private static volatile String gitCommit;
+
+    public static class Run {
+        public final long timestamp;
+        public final String script;
+        public final String scriptHash;
+        public final long datasetLines;
+        public final long datasetBytes;
+        public final String gitCommit;
+        public final int exitCode;
+        public final long elapsedNanos;
+        public final long cpuTimeMs;
+        public final long peakRssBytes;
+
+        Run(long timestamp, String script, String scriptHash, long datasetLines, long datasetBytes, String gitCommit,
+                int exitCode, long elapsedNanos, long cpuTimeMs, long peakRssBytes) {
+            this.timestamp = timestamp;
+            this.script = script;
+            this.scriptHash = scriptHash;
+            this.datasetLines = datasetLines;
+            this.datasetBytes = datasetBytes;
+            this.gitCommit = gitCommit;
+            this.exitCode = exitCode;
+            this.elapsedNanos = elapsedNanos;
+            this.cpuTimeMs = cpuTimeMs;
+            this.peakRssBytes = peakRssBytes;
+        }
+
+        String toCsv() {
+            return timestamp + "," + script + "," + scriptHash + "," + datasetLines + "," + datasetBytes + ","
+                    + gitCommit + "," + exitCode + "," + elapsedNanos + "," + cpuTimeMs + "," + peakRssBytes + "\n";
+        }
+
+        static Run parse(String line) {
+            String[] fields = line.split(",");
+            if (fields.length != 10) {
+                return null;
+            }
+            try {
+                return new Run(Long.parseLong(fields[0]), fields[1], fields[2], Long.parseLong(fields[3]),
+                        Long.parseLong(fields[4]), fields[5], Integer.parseInt(fields[6]), Long.parseLong(fields[7]),
+                        Long.parseLong(fields[8]), Long.parseLong(fields[9]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    public static class Regression {
+        public final int baselineRuns;
+        public final double baselineMeanMs;
+        public final double baselineStandardDeviationMs;
+        public final double actualMs;
+
+        Regression(int baselineRuns, double baselineMeanMs, double baselineStandardDeviationMs, double actualMs) {
+            this.baselineRuns = baselineRuns;
+            this.baselineMeanMs = baselineMeanMs;
+            this.baselineStandardDeviationMs = baselineStandardDeviationMs;
+            this.actualMs = actualMs;
+        }
+
+        public double getZScore() {
+            if (baselineStandardDeviationMs == 0) {
+                return actualMs > baselineMeanMs ? Double.POSITIVE_INFINITY : 0;
+            }
+            return (actualMs - baselineMeanMs) / baselineStandardDeviationMs;
+        }
+
+        public double getRelativeSlowdown() {
+            return baselineMeanMs == 0 ? 0 : actualMs / baselineMeanMs - 1;
+        }
+
+        public boolean isSignificant() {
+            return baselineRuns >= MIN_BASELINE_RUNS && getZScore() >= SIGNIFICANT_Z_SCORE
+                    && getRelativeSlowdown() >= MIN_RELATIVE_SLOWDOWN;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1fms vs baseline %.1fms +/- %.1fms over %d runs (z=%.1f, %+.0f%%)", actualMs,
+                    baselineMeanMs, baselineStandardDeviationMs, baselineRuns, getZScore(),
+                    getRelativeSlowdown() * 100);
+        }
+    }
+
+    private final Path file;
+
+    public PerformanceHistory() {
+        this(Paths.get(System.getProperty(FILE_PROPERTY, DEFAULT_FILE.toString())));
+    }
+
+    public PerformanceHistory(Path file) {
+        this.file = file.toAbsolutePath();
+    }
+
+    public Run record(Path script, List<Path> inputs, int exitCode, long elapsedNanos, long cpuTimeMs,
+            long peakRssBytes) {
+        long lines = 0;
+        long bytes = 0;
+        for (Path input : inputs) {
+            if (Files.isRegularFile(input)) {
+                lines += LineCounter.count(input);
+                bytes += size(input);
+            }
+        }
+
+        Run run = new Run(Instant.now().toEpochMilli(), script.getFileName().toString(), sha256(script), lines, bytes,
+                currentGitCommit(), exitCode, elapsedNanos, cpuTimeMs, peakRssBytes);
+        append(run);
+        return run;
+    }
+
+    // Judges the median of the given runs, so one noisy run in a measured series cannot fail the check on its own
+    public Regression compare(List<Run> latestRuns) {
+        Run reference = latestRuns.get(latestRuns.size() - 1);
+        Set<Run> excluded = Collections.newSetFromMap(new IdentityHashMap<>());
+        excluded.addAll(latestRuns);
+
+        List<Run> baseline = new ArrayList<>();
+        List<Run> runs = runs();
+        synchronized (runs) {
+            for (int i = runs.size() - 1; i >= 0 && baseline.size() < BASELINE_WINDOW; i--) {
+                Run candidate = runs.get(i);
+                if (!excluded.contains(candidate) && candidate.exitCode == 0
+                        && candidate.script.equals(reference.script)
+                        && candidate.datasetLines == reference.datasetLines) {
+                    baseline.add(candidate);
+                }
+            }
+        }
+
+        double mean = 0;
+        for (Run candidate : baseline) {
+            mean += candidate.elapsedNanos / 1_000_000.0 / baseline.size();
+        }
+        double squares = 0;
+        for (Run candidate : baseline) {
+            double delta = candidate.elapsedNanos / 1_000_000.0 - mean;
+            squares += delta * delta;
+        }
+        double standardDeviation = baseline.size() < 2 ? 0 : Math.sqrt(squares / (baseline.size() - 1));
+
+        long[] latest = new long[latestRuns.size()];
+        for (int i = 0; i < latest.length; i++) {
+            latest[i] = latestRuns.get(i).elapsedNanos;
+        }
+        Arrays.sort(latest);
+        double actual = latest[(latest.length - 1) / 2] / 1_000_000.0;
+
+        return new Regression(baseline.size(), mean, standardDeviation, actual);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    private List<Run> runs() {
+        return LOADED_RUNS.computeIfAbsent(file, PerformanceHistory::load);
+    }
+
+    private static List<Run> load(Path file) {
+        List<Run> runs = new ArrayList<>();
+        if (Files.isRegularFile(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                reader.readLine();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Run run = Run.parse(line);
+                    if (run != null) {
+                        runs.add(run);
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read performance history: " + file, e);
+            }
+        }
+        return Collections.synchronizedList(runs);
+    }
+
+    private void append(Run run) {
+        List<Run> runs = runs();
+        try {
+            Files.createDirectories(file.getParent());
+            synchronized (APPEND_MONITORS.computeIfAbsent(file, key -> new Object())) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    // The lock keeps lines whole when several test JVMs share one history file
+                    FileLock lock = channel.lock();
+                    try {
+                        String line = channel.size() == 0 ? HEADER + run.toCsv() : run.toCsv();
+                        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                    } finally {
+                        lock.release();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to append to performance history: " + file, e);
+        }
+        runs.add(run);
+    }
+
+    private static long size(Path input) {
+        try {
+            return Files.size(input);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static String sha256(Path script) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(script)));
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to hash script " + script, e);
+        }
+    }
+
+    private static String currentGitCommit() {
+        if (gitCommit == null) {
+            String commit = "unknown";
+            try {
+                Process process = new ProcessBuilder("git", "rev-parse", "HEAD").redirectErrorStream(true).start();
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line = reader.readLine();
+                    if (process.waitFor() == 0 && line != null) {
+                        commit = line.trim();
+                    }
+                }
+            } catch (IOException e) {
+                // Not a git checkout, or git is not installed
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            gitCommit = commit;
+        }
+        return gitCommit;
+    }
+}
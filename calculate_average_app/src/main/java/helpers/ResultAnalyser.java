@@ -1,40 +1,137 @@
 package helpers;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class ResultAnalyser {
-    private static final String RESULT_FILE = Paths
-            .get(System.getProperty("user.dir"), "calculate_average_app", "script", "averages.csv").toString();
-    private List<String[]> records = new LinkedList<>();
+    private final String resultFile;
+    private final Path workDirectory;
+
+    // user -> month -> average; memory grows with distinct keys, not with file size
+    private final Map<String, Map<String, String>> index = new HashMap<>();
+    private boolean loaded;
+
+    public ResultAnalyser(Workspace workspace) {
+        // The script writes averages.csv next to itself, i.e. into the workspace copy
+        this.resultFile = workspace.getRoot().resolve("averages.csv").toString();
+        this.workDirectory = workspace.getRoot();
+    }
 
     public void containsRecord(String user, String month, double averageAmount) {
-        if (records.isEmpty()) {
-            readRecords();
-        }
+        String average = findAverage(user, month);
 
-        String[] userRecord = records.stream().filter(record -> record[0].equals(user))
-                .findFirst().get();
+        assertEquals(averageAmount, Double.parseDouble(average));
+    }
 
-        assertEquals(month, userRecord[1]);
-        assertEquals(averageAmount, Double.parseDouble(userRecord[2]));
+    // Streams both files through a sorted merge-diff, so memory stays bounded however many users there are
+    public void matchesAverages(Path expectedFile, int maxRecordsInMemory) {
+        OutputDiff.Result diff = new OutputDiff(workDirectory)
+                .withEscapedNewlines()
+                .withKeyFields(2)
+                .withRecordEquality(ResultAnalyser::sameAverage)
+                .withMaxRecordsInMemory(maxRecordsInMemory)
+                .compare(Paths.get(resultFile), expectedFile);
+        assertTrue(diff.isIdentical(), "Averages should match the reference: " + diff);
     }
 
-    private void readRecords() {
+    // The expected value is the unrounded reference average; the script's one-decimal rounding may move it by at
+    // most 0.05, and parsing either value back may add half an ULP each
+    private static boolean sameAverage(String actual, String expected) {
+        int actualComma = actual.lastIndexOf(',');
+        int expectedComma = expected.lastIndexOf(',');
+        if (actualComma < 0 || actualComma != expectedComma || !actual.regionMatches(0, expected, 0, actualComma)) {
+            return actual.equals(expected);
+        }
         try {
-            List<String> recordStrings = Files.readAllLines(Paths.get(RESULT_FILE));
+            double actualAverage = Double.parseDouble(actual.substring(actualComma + 1));
+            double expectedAverage = Double.parseDouble(expected.substring(expectedComma + 1));
+            return Math.abs(actualAverage - expectedAverage) <= 0.05 + Math.ulp(expectedAverage);
+        } catch (NumberFormatException e) {
+            return actual.equals(expected);
+        }
+    }
+
+    private String findAverage(String user, String month) {
+        loadIndexIfNeeded();
+
+        Map<String, String> months = index.get(user);
+        assertNotNull(months, "User " + user + " should be in averages");
+        String average = months.get(month);
+        assertNotNull(average, "User " + user + " should have month " + month + " but has " + months.keySet());
+        return average;
+    }
 
-            for (String record : recordStrings.get(1).split("\\\\n")) {
-                String[] parts = record.split(",");
-                records.add(parts);
+    private void loadIndexIfNeeded() {
+        if (!loaded) {
+            loadIndex();
+            loaded = true;
+        }
+    }
+
+    private void loadIndex() {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(resultFile), StandardCharsets.UTF_8)) {
+            reader.readLine();
+
+            // The script separates records with a literal "\n", so both it and real line breaks end a record
+            StringBuilder record = new StringBuilder();
+            boolean escaped = false;
+            int c;
+            while ((c = reader.read()) != -1) {
+                if (escaped) {
+                    escaped = false;
+                    if (c == 'n') {
+                        addRecord(record);
+                        continue;
+                    }
+                    record.append('\\');
+                }
+
+                if (c == '\\') {
+                    escaped = true;
+                } else if (c == '\n') {
+                    addRecord(record);
+                } else {
+                    record.append((char) c);
+                }
             }
+            if (escaped) {
+                record.append('\\');
+            }
+            addRecord(record);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
+
+    private void addRecord(StringBuilder record) {
+        if (record.length() == 0) {
+            return;
+        }
+
+        String line = record.toString();
+        record.setLength(0);
+
+        int firstComma = line.indexOf(',');
+        int secondComma = line.indexOf(',', firstComma + 1);
+        if (firstComma < 0 || secondComma < 0) {
+            return;
+        }
+
+        String user = line.substring(0, firstComma);
+        String month = line.substring(firstComma + 1, secondComma);
+        int valueEnd = line.indexOf(',', secondComma + 1);
+        String average = line.substring(secondComma + 1, valueEnd < 0 ? line.length() : valueEnd);
+
+        index.computeIfAbsent(user, key -> new HashMap<>(2)).putIfAbsent(month, average);
+    }
 }
@@ -1,6 +1,24 @@
+import helpers.CapacitySearch;
+import helpers.Complexity;
+import helpers.DatasetSpec;
+import helpers.LoadRunner;
+import helpers.ScriptRunner;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.parallel.Isolated;
+import org.opentest4j.AssertionFailedError;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.SplittableRandom;
 
 public class CalculateAverageTest {
+
+    @AfterEach
+    public void tearDown() {
+        TestScenario.deleteWorkspaces();
+    }
+
     @Test
     public void calculatingAverageWithTwoUsersAndOneRecordWorksCorrectly() {
         new TestScenario()
@@ -14,6 +32,96 @@ public class CalculateAverageTest {
                 .containsRecord("user2", "ALL", 100.0);
     }
 
+    @Test
+    public void calculatingAverageForGeneratedDatasetMatchesReferenceImplementation() {
+        new TestScenario()
+                .given()
+                .generateRecords(20_000)
+                .withRecord("user1", "2025-01-01", "transport", 800.0)
+                .when().executeScript()
+                .then()
+                .exitCodeIs(0)
+                .matchesReferenceImplementation();
+    }
+
+    @Test
+    public void amountsBeyondLongPrecisionMatchReferenceImplementation() {
+        new TestScenario()
+                .given()
+                .generateRecords(0)
+                .withRecord("whale", "2025-01-01", "transport", 12_345_678_901_234_567_890.0)
+                .withRecord("whale", "2025-01-02", "food", 1.25)
+                .withRecord("user1", "2025-01-03", "food", 100.0)
+                .when().executeScript()
+                .then()
+                .exitCodeIs(0)
+                .matchesReferenceImplementation();
+    }
+
+    @Test
+    public void averagesForManyUsersMatchReferenceImplementationThroughExternalSort() {
+        TestScenario scenario = new TestScenario()
+                .given()
+                .generateRecords(1000);
+        for (int i = 0; i < 2000; i++) {
+            scenario.withRecord("user" + i, "2025-01-01", "food", 10.0 + i);
+        }
+        scenario.when().executeScript()
+                .then()
+                .exitCodeIs(0)
+                // A budget far below the 2,004 averages forces sorted runs onto disk
+                .matchesReferenceImplementation(256);
+    }
+
+    @Test
+    public void datasetDescribedBySpecMatchesReferenceImplementation() {
+        new TestScenario()
+                .given()
+                .generateDataset("datasets/production-shaped.properties")
+                .when()
+                .executeScript()
+                .then()
+                .exitCodeIs(0)
+                .matchesReferenceImplementation();
+    }
+
+    @Test
+    public void zipfSkewedUsersMatchReferenceImplementation() {
+        new TestScenario()
+                .given()
+                .generateDataset(new DatasetSpec()
+                        .withRows(90_000)
+                        .withKeys(50_000)
+                        .withZipfKeys(1.2)
+                        .withSeed(19L))
+                .when()
+                .executeScript()
+                .then()
+                .exitCodeIs(0)
+                .matchesReferenceImplementation();
+    }
+
+    @Test
+    public void zipfKeySamplerFollowsItsDistribution() {
+        int keys = 1000;
+        int draws = 1_000_000;
+        double harmonic = 0;
+        for (int k = 1; k <= keys; k++) {
+            harmonic += 1.0 / k;
+        }
+        DatasetSpec.KeySampler sampler = new DatasetSpec().withZipfKeys(1).keySampler(keys);
+        SplittableRandom random = new SplittableRandom(19L);
+        int[] counts = new int[keys];
+        for (int i = 0; i < draws; i++) {
+            counts[sampler.next(random)]++;
+        }
+        // Rank k should get draws / (k * H(keys)); 5% leaves ample room for sampling noise at these counts
+        for (int rank : new int[] { 1, 2, 10 }) {
+            double expected = draws / (rank * harmonic);
+            Assertions.assertEquals(expected, counts[rank - 1], expected * 0.05, "Draws for rank " + rank);
+        }
+    }
+
     @Test
     public void calculatingAverageWithInvalidDataLeadsToInvalidDataError() {
         new TestScenario()
@@ -36,6 +144,7 @@ public class CalculateAverageTest {
     }
 
     @Nested
+    @Isolated("Timings and resource usage are only meaningful while nothing else runs")
     @DisplayName("Non-functional Performance Tests")
     class NonFunctionalTests {
 
@@ -45,10 +154,11 @@ public class CalculateAverageTest {
                     .given()
                     .generateRecords(10)
                     .when()
-                    .executeScript()
+                    .measureExecutionTime()
                     .then()
                     .exitCodeIs(0)
-                    .executionTimeWithin(1000L);
+                    .p90Within(1000L)
+                    .hasNoPerformanceRegression();
         }
 
         @Test
@@ -57,10 +167,10 @@ public class CalculateAverageTest {
                     .given()
                     .generateRecords(100)
                     .when()
-                    .executeScript()
+                    .measureExecutionTime()
                     .then()
                     .exitCodeIs(0)
-                    .executionTimeWithin(2000L);
+                    .p90Within(2000L);
         }
 
         @Test
@@ -87,6 +197,18 @@ public class CalculateAverageTest {
                     .memoryUsageWithin(30 * 1024 * 1024L);
         }
 
+        @Test
+        public void cpuUsageIsWithinLimits() {
+            new TestScenario()
+                    .given()
+                    .generateRecords(1000)
+                    .when()
+                    .executeScript()
+                    .then()
+                    .exitCodeIs(0)
+                    .cpuTimeWithin(5000L);
+        }
+
         @Test
         public void performanceIsAcceptableForLargeDataset() {
             new TestScenario()
@@ -169,6 +291,16 @@ public class CalculateAverageTest {
                     "Scaling should be reasonable: " + scalingFactor + "x");
         }
 
+        @Test
+        public void scalingIsSubQuadraticInTransactionCount() {
+            new TestScenario()
+                    .given()
+                    .withSeed(42L)
+                    .when()
+                    .then()
+                    .scalingIsAtMost(Complexity.LINEARITHMIC, 3_000, 6, 7);
+        }
+
         @Test
         public void veryLargeDatasetCompletesSuccessfully() {
             new TestScenario()
@@ -180,5 +312,164 @@ public class CalculateAverageTest {
                     .exitCodeIs(0)
                     .executionTimeWithin(15000L);
         }
+
+        @Test
+        public void memoryGrowsWithDistinctUsersRatherThanTransactions() {
+            TestScenario fewUsers = new TestScenario()
+                    .given()
+                    .generateDataset(new DatasetSpec().withRows(500_000).withKeys(100).withSeed(19L))
+                    .when()
+                    .executeScript()
+                    .then()
+                    .exitCodeIs(0);
+
+            TestScenario manyUsers = new TestScenario()
+                    .given()
+                    .generateDataset(new DatasetSpec().withRows(500_000).withKeys(500_000).withSeed(19L))
+                    .when()
+                    .executeScript()
+                    .then()
+                    .exitCodeIs(0)
+                    .memoryUsageWithin(256 * 1024 * 1024L)
+                    .matchesReferenceImplementation();
+
+            // awk keeps one sum and one count per user, so the same rows over 5,000x the users must cost more
+            Assertions.assertTrue(manyUsers.getMemoryUsedBytes() > 2 * fewUsers.getMemoryUsedBytes(),
+                    "Peak RSS for 500,000 users (" + manyUsers.getMemoryUsedBytes() + " bytes) should exceed twice "
+                            + "that for 100 users (" + fewUsers.getMemoryUsedBytes() + " bytes)");
+        }
+
+        @Test
+        public void scriptPastItsDeadlineIsKilledWithPartialMetrics() {
+            TestScenario scenario = new TestScenario()
+                    .given()
+                    .generateRecords(150_000)
+                    .withDeadline(2000L);
+
+            // Past 100,000 lines the script sleeps for 6 seconds after awk has written every average
+            AssertionFailedError failure = Assertions.assertThrows(AssertionFailedError.class,
+                    () -> scenario.when().executeScript());
+            Assertions.assertTrue(failure.getMessage().contains("exceeded its deadline"), failure.getMessage());
+
+            ScriptRunner.DeadlineExceeded exceeded = scenario.getDeadlineExceeded();
+            Assertions.assertTrue(exceeded.elapsedMs < 4000, "Script should be killed soon after the deadline: "
+                    + exceeded);
+            // The script's printf emits a literal "\n", so every average lands on the header's line
+            Assertions.assertTrue(exceeded.resultBytes > "user,month,average_spending".length(),
+                    "Averages written before the sleep should be reported: " + exceeded);
+            Assertions.assertTrue(exceeded.cpuTimeMs > 0, "CPU used before the kill should be reported: " + exceeded);
+            Assertions.assertTrue(exceeded.killedProcesses.size() >= 2, "bash and its sleep should be killed: "
+                    + exceeded);
+            Assertions.assertTrue(exceeded.getSurvivors().isEmpty(),
+                    "No process of the tree should outlive the kill: " + exceeded);
+        }
+
+        @Test
+        public void concurrentInstancesWithIsolatedOutputsStayIntact() {
+            TestScenario scenario = new TestScenario()
+                    .given()
+                    .generateRecords(20_000)
+                    .when()
+                    .runConcurrently(4, LoadRunner.OutputMode.ISOLATED)
+                    .then()
+                    .concurrentOutputIsIntact()
+                    .concurrentThroughputAtLeast(50_000);
+
+            LoadRunner.Report report = scenario.getLoadReport();
+            Assertions.assertEquals(4, report.latency.getCount(), report.toString());
+            Assertions.assertTrue(report.totalCpuTimeMs > 0, "CPU used by the instances should be reported: " + report);
+        }
+
+        @Test
+        public void throughputIsReportedInRowsAndBytes() throws IOException {
+            TestScenario scenario = new TestScenario()
+                    .given()
+                    .generateRecords(50_000)
+                    .when()
+                    .executeScript()
+                    .then()
+                    .exitCodeIs(0)
+                    .throughputAtLeast(20_000)
+                    .inputMegabytesPerSecondAtLeast(0.5);
+
+            ScriptRunner.Throughput throughput = scenario.getThroughput();
+            Assertions.assertEquals(50_000, throughput.rowsIn, throughput.toString());
+            Assertions.assertEquals(Files.size(Paths.get(scenario.getDataFile("transactions.csv"))),
+                    throughput.getBytesIn(), throughput.toString());
+            // One average per user, whatever the number of transactions
+            Assertions.assertEquals(4, throughput.rowsOut, throughput.toString());
+        }
+
+        @Test
+        public void capacitySearchStopsAtTheLargeInputSlowdown() {
+            CapacitySearch.Result capacity = new TestScenario()
+                    .when()
+                    .findCapacityWithin(3000L)
+                    .then()
+                    .capacityIsAtLeast(50_000)
+                    .getCapacity();
+
+            // Past 100,000 lines the script sleeps for 6 seconds, so the budget is lost at the header plus 99,999 rows
+            Assertions.assertTrue(capacity.capacity < 100_000 && capacity.firstOverBudget <= 105_000,
+                    "Capacity should end just short of the slowdown: " + capacity);
+            Assertions.assertTrue(capacity.probes.stream().allMatch(probe -> probe.elapsedMs < 3000L + 2000L),
+                    "Probes over budget should be killed at it: " + capacity);
+        }
+
+        @Test
+        public void generatorIsNotTheBottleneckForLargeDatasets() {
+            new TestScenario()
+                    .given()
+                    .generateRecords(1_000_000)
+                    .generationThroughputAtLeast(10 * 1024 * 1024);
+        }
+
+        @Test
+        public void generatedDatasetIsReproducibleRegardlessOfCoreCount() {
+            String singleCore = new TestScenario()
+                    .given()
+                    .withSeed(42L)
+                    .withParallelism(1)
+                    .generateRecords(100_000)
+                    .getGeneratedDataChecksum();
+
+            String multiCore = new TestScenario()
+                    .given()
+                    .withSeed(42L)
+                    .withParallelism(8)
+                    .generateRecords(100_000)
+                    .getGeneratedDataChecksum();
+
+            Assertions.assertEquals(singleCore, multiCore,
+                    "Same seed should produce byte-identical datasets");
+        }
+
+        @Test
+        public void seededDatasetIsServedFromCacheOnRepeat() {
+            String generated = new TestScenario()
+                    .given()
+                    .withSeed(4242L)
+                    .generateRecords(100_000)
+                    .getGeneratedDataChecksum();
+
+            TestScenario repeated = new TestScenario()
+                    .given()
+                    .withSeed(4242L)
+                    .generateRecords(100_000);
+            Assertions.assertTrue(repeated.isDatasetCacheHit(),
+                    "Same seed and size should be served from the dataset cache");
+            Assertions.assertEquals(generated, repeated.getGeneratedDataChecksum(),
+                    "Cached dataset should be byte-identical to the generated one");
+
+            // Appending to a materialised dataset must not leak into the cached copy
+            repeated.withRecord("zoe", "2025-01-01", "food", 10.0);
+            String afterAppend = new TestScenario()
+                    .given()
+                    .withSeed(4242L)
+                    .generateRecords(100_000)
+                    .getGeneratedDataChecksum();
+            Assertions.assertEquals(generated, afterAppend,
+                    "Cached dataset should be unchanged by writes in a workspace");
+        }
     }
 }
@@ -0,0 +1,55 @@
+package benchmarks;
+
+import helpers.DataGenerator;
+import helpers.Workspace;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class DataGeneratorBenchmark {
+    @Param({ "1000", "10000", "100000" })
+    public int users;
+
+    private Workspace workspace;
+    private DataGenerator dataGenerator;
+
+    @Setup
+    public void setUp() {
+        workspace = new Workspace();
+        dataGenerator = new DataGenerator(workspace).withSeed(42L).generateLargeDataset(users, users);
+    }
+
+    @TearDown
+    public void tearDown() {
+        workspace.delete();
+    }
+
+    @Benchmark
+    public DataGenerator writeFiles() {
+        dataGenerator.writeFiles();
+        return dataGenerator;
+    }
+
+    @Benchmark
+    public DataGenerator generateAndWriteFiles() {
+        DataGenerator generator = new DataGenerator(workspace).withSeed(42L).generateLargeDataset(users, users);
+        generator.writeFiles();
+        return generator;
+    }
+}
@@ -0,0 +1,75 @@
+package benchmarks;
+
+import helpers.ResultAnalyser;
+import helpers.Workspace;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class ResultAnalyserBenchmark {
+    @Param({ "100", "10000", "1000000" })
+    public int users;
+
+    private Workspace workspace;
+    private String lastLogin;
+
+    @Setup
+    public void setUp() throws IOException {
+        workspace = new Workspace();
+        Path resultFile = workspace.getDataDir().resolve("active_users.csv");
+        lastLogin = LocalDate.now().minusDays(5).toString();
+        try (Writer writer = Files.newBufferedWriter(resultFile, StandardCharsets.UTF_8)) {
+            writer.write("login,last_login\n");
+            for (int i = 0; i < users; i++) {
+                writer.write("user" + i + "," + lastLogin + "\n");
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        workspace.delete();
+    }
+
+    @Benchmark
+    public int loadRecords() {
+        // A fresh analyser parses the whole file on its first query
+        return new ResultAnalyser(workspace).getUserCount();
+    }
+
+    @Benchmark
+    public ResultAnalyser chainedAssertions() {
+        // Eight assertions in one batch, answered together by one read of the output
+        return new ResultAnalyser(workspace).inOnePass(analyser -> analyser
+                .containsUser("user0")
+                .doesNotContainUser("nobody")
+                .hasUserCount(users)
+                .hasNoDuplicates()
+                .hasValidCsvFormat()
+                .allUsersLoggedInWithinDays(30)
+                .containsUserWithDate("user0", lastLogin)
+                .fileExists());
+    }
+}
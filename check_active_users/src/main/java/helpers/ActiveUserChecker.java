@@ -0,0 +1,352 @@
+package helpers;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+// In-process equivalent of check_active_users.sh: hash lookups instead of a grep, cut and date fork per user
+public class ActiveUserChecker {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int MAX_DAYS_SINCE_LOGIN = 30;
+    private static final long SECONDS_PER_DAY = 86_400;
+    private static final long INVALID_DATE = Long.MIN_VALUE;
+
+    private final int parallelism;
+    private final ZoneId zone = ZoneId.systemDefault();
+    // Login dates repeat heavily, so each distinct date is converted to local midnight only once
+    private final Map<Long, Long> midnightByEpochDay = new ConcurrentHashMap<>();
+    private final Map<String, Long> externallyParsedDates = new ConcurrentHashMap<>();
+    private long bytesProcessed;
+    private long rowsProcessed;
+    private long elapsedNanos;
+
+    public ActiveUserChecker() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ActiveUserChecker(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public List<ResultAnalyser.UserRecord> check(Path usersFile, Path loginsFile, Path bannedFile) {
+        long startTime = System.nanoTime();
+        long today = System.currentTimeMillis() / 1000;
+
+        Banned banned = readBanned(bannedFile);
+        Map<String, String> lastLogins = readLastLogins(loginsFile);
+
+        // `while read -r` never sees a last line without a newline, and trims blanks around the login
+        List<String> users = new ArrayList<>();
+        forEachLine(usersFile, false, line -> users.add(trimBlanks(line)));
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "active-user-checker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            // Contiguous slices keep the script's output order once the results are joined back
+            int sliceSize = Math.max(1, (users.size() + parallelism - 1) / parallelism);
+            List<Future<List<ResultAnalyser.UserRecord>>> futures = new ArrayList<>();
+            for (int start = 0; start < users.size(); start += sliceSize) {
+                List<String> slice = users.subList(start, Math.min(users.size(), start + sliceSize));
+                futures.add(executor.submit(() -> checkSlice(slice, banned, lastLogins, today)));
+            }
+
+            List<ResultAnalyser.UserRecord> active = new ArrayList<>();
+            for (Future<List<ResultAnalyser.UserRecord>> future : futures) {
+                active.addAll(future.get());
+            }
+
+            bytesProcessed = size(usersFile) + size(loginsFile) + size(bannedFile);
+            rowsProcessed = users.size();
+            elapsedNanos = System.nanoTime() - startTime;
+            return active;
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to check active users in " + usersFile, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while checking active users in " + usersFile, e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void writeActiveUsers(Path usersFile, Path loginsFile, Path bannedFile, Path output) {
+        List<ResultAnalyser.UserRecord> active = check(usersFile, loginsFile, bannedFile);
+        try {
+            Files.createDirectories(output.getParent());
+            try (Writer writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+                writer.write("login,last_login\n");
+                for (ResultAnalyser.UserRecord user : active) {
+                    writer.write(user.login + "," + user.lastLogin + "\n");
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write active users file: " + output, e);
+        }
+    }
+
+    private List<ResultAnalyser.UserRecord> checkSlice(List<String> users, Banned banned,
+            Map<String, String> lastLogins, long today) {
+        List<ResultAnalyser.UserRecord> active = new ArrayList<>();
+        for (String user : users) {
+            if (user.isEmpty() || banned.contains(user)) {
+                continue;
+            }
+            String lastLogin = lastLogins.get(user);
+            if (lastLogin == null || lastLogin.isEmpty()) {
+                continue;
+            }
+            long loginTimestamp = toTimestamp(lastLogin);
+            // Bash arithmetic truncates towards zero, so future dates count as active
+            if (loginTimestamp != INVALID_DATE && (today - loginTimestamp) / SECONDS_PER_DAY <= MAX_DAYS_SINCE_LOGIN) {
+                active.add(new ResultAnalyser.UserRecord(user, lastLogin));
+            }
+        }
+        return active;
+    }
+
+    // `date -d YYYY-MM-DD +%s` is local midnight of that day
+    private long toTimestamp(String date) {
+        long epochDay = parseEpochDay(date);
+        if (epochDay != INVALID_DATE) {
+            return midnightByEpochDay.computeIfAbsent(epochDay,
+                    day -> LocalDate.ofEpochDay(day).atStartOfDay(zone).toEpochSecond());
+        }
+        // GNU date accepts far more than ISO dates; the rare other spelling is handed to date(1) itself
+        return externallyParsedDates.computeIfAbsent(date, ActiveUserChecker::parseWithDateCommand);
+    }
+
+    // Fixed-width YYYY-MM-DD straight to days since 1970-01-01, without LocalDate.parse or its exceptions
+    static long parseEpochDay(String date) {
+        if (date.length() != 10 || date.charAt(4) != '-' || date.charAt(7) != '-') {
+            return INVALID_DATE;
+        }
+        int year = parseDigits(date, 0, 4);
+        int month = parseDigits(date, 5, 7);
+        int day = parseDigits(date, 8, 10);
+        if (year < 1 || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)) {
+            return INVALID_DATE;
+        }
+
+        // Civil date to day number with March as the first month, so the leap day ends the year
+        int y = month <= 2 ? year - 1 : year;
+        int era = y / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * ((month + 9) % 12) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146_097L + dayOfEra - 719_468;
+    }
+
+    private static int parseDigits(String text, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        if (month == 2) {
+            boolean leap = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+            return leap ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    private static long parseWithDateCommand(String date) {
+        try {
+            Process process = new ProcessBuilder("date", "-d", date, "+%s")
+                    .redirectError(ProcessBuilder.Redirect.DISCARD).start();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line = reader.readLine();
+                if (process.waitFor() == 0 && line != null) {
+                    return Long.parseLong(line.trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Treated like the script treats an unparseable date
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return INVALID_DATE;
+    }
+
+    // Mirrors `tail -n +2 | grep "^$user," | cut -d',' -f2 | head -1`: the first row for a login wins
+    private static Map<String, String> readLastLogins(Path loginsFile) {
+        Map<String, String> lastLogins = new HashMap<>();
+        Map<String, String> dates = new HashMap<>();
+        boolean[] header = { true };
+        forEachLine(loginsFile, true, line -> {
+            if (header[0]) {
+                header[0] = false;
+                return;
+            }
+            int comma = line.indexOf(',');
+            if (comma < 0) {
+                return;
+            }
+            int end = line.indexOf(',', comma + 1);
+            String date = line.substring(comma + 1, end < 0 ? line.length() : end);
+            // Logins are matched literally, where grep would read regex metacharacters in a login as a pattern
+            lastLogins.putIfAbsent(line.substring(0, comma), dates.computeIfAbsent(date, key -> key));
+        });
+        return lastLogins;
+    }
+
+    // Mirrors `jq -r '.[]' | tr '\n' '|'` and the four glob patterns matched against the joined list
+    private static Banned readBanned(Path bannedFile) {
+        StringBuilder joined = new StringBuilder();
+        try (JsonParser parser = MAPPER.getFactory().createParser(bannedFile.toFile())) {
+            JsonToken root = parser.nextToken();
+            if (root == JsonToken.START_ARRAY || root == JsonToken.START_OBJECT) {
+                JsonToken token;
+                while ((token = parser.nextToken()) != null && token != JsonToken.END_ARRAY
+                        && token != JsonToken.END_OBJECT) {
+                    if (token == JsonToken.FIELD_NAME) {
+                        continue;
+                    }
+                    joined.append(render(parser, token)).append('|');
+                }
+            }
+        } catch (JsonProcessingException e) {
+            // jq prints nothing for a malformed file, so nobody is banned
+            joined.setLength(0);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read banned users file: " + bannedFile, e);
+        }
+        return new Banned(joined.toString().replace('\n', '|'));
+    }
+
+    private static String render(JsonParser parser, JsonToken value) throws IOException {
+        switch (value) {
+            case VALUE_STRING:
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getText();
+            case VALUE_TRUE:
+                return "true";
+            case VALUE_FALSE:
+                return "false";
+            case VALUE_NULL:
+                return "null";
+            default:
+                // jq would pretty-print nested values over several lines; the generator never writes them
+                return parser.readValueAsTree().toString();
+        }
+    }
+
+    private static class Banned {
+        private final String joined;
+        private final Set<String> entries = new HashSet<>();
+
+        Banned(String joined) {
+            this.joined = joined;
+            for (String entry : joined.split("\\|")) {
+                entries.add(entry);
+            }
+        }
+
+        boolean contains(String user) {
+            // Without a '|' in the login the glob patterns can only match whole entries
+            if (user.indexOf('|') < 0) {
+                return entries.contains(user);
+            }
+            return joined.contains("|" + user + "|") || joined.startsWith(user + "|") || joined.endsWith("|" + user)
+                    || joined.equals(user);
+        }
+    }
+
+    // Splits on '\n' only, as bash and grep do, so a stray '\r' stays part of the line
+    private static void forEachLine(Path file, boolean includeUnterminated, Consumer<String> consumer) {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream input = new BufferedInputStream(Files.newInputStream(file))) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        line.write(buffer, start, i - start);
+                        consumer.accept(line.toString(StandardCharsets.UTF_8));
+                        line.reset();
+                        start = i + 1;
+                    }
+                }
+                line.write(buffer, start, read - start);
+            }
+            if (includeUnterminated && line.size() > 0) {
+                consumer.accept(line.toString(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + file, e);
+        }
+    }
+
+    private static String trimBlanks(String line) {
+        int start = 0;
+        int end = line.length();
+        while (start < end && (line.charAt(start) == ' ' || line.charAt(start) == '\t')) {
+            start++;
+        }
+        while (end > start && (line.charAt(end - 1) == ' ' || line.charAt(end - 1) == '\t')) {
+            end--;
+        }
+        return line.substring(start, end);
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public long getBytesProcessed() {
+        return bytesProcessed;
+    }
+
+    public long getRowsProcessed() {
+        return rowsProcessed;
+    }
+
+    public long getElapsedTimeMs() {
+        return elapsedNanos / 1_000_000;
+    }
+
+    public double getBytesPerSecond() {
+        return elapsedNanos == 0 ? 0 : bytesProcessed * 1_000_000_000.0 / elapsedNanos;
+    }
+}
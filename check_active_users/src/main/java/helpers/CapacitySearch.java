@@ -0,0 +1,165 @@
+package helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Finds the largest input a script handles within a time or memory budget: doubling until a probe fails, then
+// bisecting between the last size that fit and the first that did not
+public class CapacitySearch {
+    private static final int GROWTH_FACTOR = 2;
+    // Bisection stops once the bracket is this close, relative to the size that fits
+    private static final double PRECISION = 0.05;
+
+    public interface Prober {
+        Probe run(long size);
+    }
+
+    public static class Probe {
+        public final long size;
+        public final int exitCode;
+        public final long elapsedMs;
+        public final long peakRssBytes;
+        // Killed at the time budget rather than left to finish
+        public final boolean killed;
+
+        public Probe(long size, int exitCode, long elapsedMs, long peakRssBytes, boolean killed) {
+            this.size = size;
+            this.exitCode = exitCode;
+            this.elapsedMs = elapsedMs;
+            this.peakRssBytes = peakRssBytes;
+            this.killed = killed;
+        }
+
+        @Override
+        public String toString() {
+            return size + ": " + (killed ? "killed after " : "") + elapsedMs + "ms, " + peakRssBytes / 1024
+                    + " KB peak RSS" + (exitCode != 0 && !killed ? ", exit code " + exitCode : "");
+        }
+    }
+
+    public static class Result {
+        public final String script;
+        public final String unit;
+        public final String budget;
+        // 0 when even the smallest probe did not fit
+        public final long capacity;
+        // Long.MAX_VALUE when the largest size allowed still fit
+        public final long firstOverBudget;
+        public final List<Probe> probes;
+
+        Result(String script, String unit, String budget, long capacity, long firstOverBudget, List<Probe> probes) {
+            this.script = script;
+            this.unit = unit;
+            this.budget = budget;
+            this.capacity = capacity;
+            this.firstOverBudget = firstOverBudget;
+            this.probes = probes;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder(script + " handles " + capacity + " " + unit + " in " + budget
+                    + " on this host" + (firstOverBudget == Long.MAX_VALUE ? " (the largest size tried)"
+                    : " (" + firstOverBudget + " do not fit)") + "; probes:");
+            for (Probe probe : probes) {
+                report.append("\n  ").append(probe);
+            }
+            return report.toString();
+        }
+    }
+
+    private final String script;
+    private final String unit;
+    private final long startSize;
+    private final long maxSize;
+    private long maxTimeMs = Long.MAX_VALUE;
+    private long maxMemoryBytes = Long.MAX_VALUE;
+
+    public CapacitySearch(String script, String unit, long startSize, long maxSize) {
+        if (startSize < 1 || maxSize < startSize) {
+            throw new IllegalArgumentException("Sizes must satisfy 1 <= start <= max, got " + startSize + ".."
+                    + maxSize);
+        }
+        this.script = script;
+        this.unit = unit;
+        this.startSize = startSize;
+        this.maxSize = maxSize;
+    }
+
+    public CapacitySearch withTimeBudget(long maxTimeMs) {
+        this.maxTimeMs = maxTimeMs;
+        return this;
+    }
+
+    public CapacitySearch withMemoryBudget(long maxMemoryBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        return this;
+    }
+
+    // Lets the prober kill a run once it can no longer fit, so a failed probe costs no more than the budget
+    public long getTimeBudgetMs() {
+        return maxTimeMs;
+    }
+
+    public Result search(Prober prober) {
+        List<Probe> probes = new ArrayList<>();
+        long fits = 0;
+        long overBudget = Long.MAX_VALUE;
+
+        // Doubling brackets the capacity in a logarithmic number of probes, however far off the start size is
+        for (long size = startSize; ; size = Math.min(maxSize, size * GROWTH_FACTOR)) {
+            Probe probe = prober.run(size);
+            probes.add(probe);
+            if (!isWithinBudget(probe)) {
+                overBudget = size;
+                break;
+            }
+            fits = size;
+            if (size == maxSize) {
+                break;
+            }
+        }
+
+        while (overBudget != Long.MAX_VALUE && overBudget - fits > Math.max(1, fits * PRECISION)) {
+            long size = roundedMidpoint(fits, overBudget);
+            if (size <= fits || size >= overBudget) {
+                break;
+            }
+            Probe probe = prober.run(size);
+            probes.add(probe);
+            if (isWithinBudget(probe)) {
+                fits = size;
+            } else {
+                overBudget = size;
+            }
+        }
+        return new Result(script, unit, describeBudget(), fits, overBudget, probes);
+    }
+
+    private boolean isWithinBudget(Probe probe) {
+        return probe.exitCode == 0 && !probe.killed && probe.elapsedMs <= maxTimeMs
+                && probe.peakRssBytes <= maxMemoryBytes;
+    }
+
+    // Round sizes come out of repeated searches again, so their cached fixtures are reused, and read better in a report
+    private static long roundedMidpoint(long low, long high) {
+        long middle = low + (high - low) / 2;
+        long step = 1;
+        while (middle / step >= 100) {
+            step *= 10;
+        }
+        long rounded = Math.round((double) middle / step) * step;
+        return rounded > low && rounded < high ? rounded : middle;
+    }
+
+    private String describeBudget() {
+        List<String> budgets = new ArrayList<>();
+        if (maxTimeMs != Long.MAX_VALUE) {
+            budgets.add(maxTimeMs + "ms");
+        }
+        if (maxMemoryBytes != Long.MAX_VALUE) {
+            budgets.add(maxMemoryBytes + " bytes of memory");
+        }
+        return budgets.isEmpty() ? "no budget" : String.join(" and ", budgets);
+    }
+}
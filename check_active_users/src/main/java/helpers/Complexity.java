@@ -0,0 +1,29 @@
+package helpers;
+
+public enum Complexity {
+    LINEAR("O(n)"),
+    LINEARITHMIC("O(n log n)"),
+    QUADRATIC("O(n^2)");
+
+    private final String notation;
+
+    Complexity(String notation) {
+        this.notation = notation;
+    }
+
+    public double apply(double n) {
+        switch (this) {
+            case LINEARITHMIC:
+                return n * Math.log(n);
+            case QUADRATIC:
+                return n * n;
+            default:
+                return n;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return notation;
+    }
+}
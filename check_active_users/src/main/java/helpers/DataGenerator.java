@@ -1,49 +1,75 @@
 package helpers;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
+import java.util.SplittableRandom;
 
 public class DataGenerator {
-    private static final String DATA_DIR = Paths.get(System.getProperty("user.dir"), "data").toString();
-    private static final String USERS_FILE = Paths.get(DATA_DIR, "users.txt").toString();
-    private static final String LOGINS_FILE = Paths.get(DATA_DIR, "logins.csv").toString();
-    private static final String BANNED_FILE = Paths.get(DATA_DIR, "banned.json").toString();
+    private static final String[] USER_NAMES = { "alice", "bob", "carol", "dave", "eve", "frank", "grace", "henry",
+            "ivy", "jack" };
+    private static final int LOGIN_DAYS_RANGE = 60;
+    private static final int MAX_ROW_LENGTH = 64;
 
+    private final DatasetCache cache = new DatasetCache();
+    private final String dataDir;
+    private final String usersFile;
+    private final String loginsFile;
+    private final String bannedFile;
     private final List<String> users = new ArrayList<>();
     private final Map<String, String> logins = new HashMap<>();
     private final Set<String> bannedUsers = new HashSet<>();
 
-    public DataGenerator() {
+    private long seed = System.nanoTime();
+    private boolean seedFixed;
+    private boolean cacheEnabled = true;
+    private boolean cacheHit;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private DatasetSpec spec;
+
+    public DataGenerator(Workspace workspace) {
+        this.dataDir = workspace.getDataDir().toString();
+        this.usersFile = workspace.dataFile("users.txt");
+        this.loginsFile = workspace.dataFile("logins.csv");
+        this.bannedFile = workspace.dataFile("banned.json");
         createDataDir();
     }
 
     private void createDataDir() {
-        File directory = new File(DATA_DIR);
+        File directory = new File(dataDir);
         if (!directory.exists()) {
             directory.mkdirs();
         }
     }
 
+    private static String userName(long index) {
+        return USER_NAMES[(int) (index % USER_NAMES.length)] + (index >= USER_NAMES.length ? String.valueOf(index) : "");
+    }
+
     public DataGenerator generateUsers(int count) {
+        spec = null;
         users.clear();
-        Random random = new Random();
-        String[] userNames = { "alice", "bob", "carol", "dave", "eve", "frank", "grace", "henry", "ivy", "jack" };
 
         for (int i = 0; i < count; i++) {
-            String user = userNames[i % userNames.length] + (i >= userNames.length ? String.valueOf(i) : "");
-            users.add(user);
+            users.add(userName(i));
         }
         return this;
     }
@@ -69,13 +95,29 @@ public class DataGenerator {
         return this;
     }
 
+    public DataGenerator withSeed(long seed) {
+        this.seed = seed;
+        this.seedFixed = true;
+        return this;
+    }
+
+    public DataGenerator withoutCache() {
+        this.cacheEnabled = false;
+        return this;
+    }
+
+    public DataGenerator withParallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
     public DataGenerator generateLargeDataset(int userCount, int loginRecords) {
         generateUsers(userCount);
 
-        Random random = new Random();
+        SplittableRandom random = new SplittableRandom(seed);
         for (int i = 0; i < loginRecords; i++) {
             String user = users.get(random.nextInt(users.size()));
-            int daysAgo = random.nextInt(60);
+            int daysAgo = random.nextInt(LOGIN_DAYS_RANGE);
             withLogin(user, daysAgo);
         }
 
@@ -88,14 +130,63 @@ public class DataGenerator {
         return this;
     }
 
+    // The default shape: logins spread uniformly over the last 60 days, a tenth of the users banned
+    public DataGenerator generateShardedDataset(int userCount, int loginRecords) {
+        if (userCount == 0) {
+            spec = null;
+            return this;
+        }
+        return generateDataset(new DatasetSpec()
+                .withKeys(userCount)
+                .withRows(loginRecords)
+                .withRecentDates(LOGIN_DAYS_RANGE)
+                .withBannedRate(0.1));
+    }
+
+    // keys are the users in users.txt and rows the login records; generated rows are never held in memory
+    public DataGenerator generateDataset(DatasetSpec spec) {
+        if (spec.hasSeed()) {
+            withSeed(spec.getSeed());
+        }
+        this.spec = spec;
+        return this;
+    }
+
     public void writeFiles() {
+        List<Path> files = List.of(Paths.get(usersFile), Paths.get(loginsFile), Paths.get(bannedFile));
+        cacheHit = false;
+        if (spec != null) {
+            // Only a fixed seed makes the dataset reproducible, and so worth keeping between runs
+            if (seedFixed && cacheEnabled) {
+                cacheHit = cache.materialise(cacheKey(), files, this::writeShardedFiles);
+            } else {
+                writeShardedFiles();
+            }
+            return;
+        }
+
+        // The writers below truncate in place, which would corrupt a cached dataset still linked here
+        try {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to replace generated files", e);
+        }
         writeUsersFile();
         writeLoginsFile();
         writeBannedFile();
     }
 
+    // Explicit entries are keyed by content; parallelism is keyed so the reproducibility checks still generate twice
+    private String cacheKey() {
+        // Logins are dated relative to today, so a cached dataset is only valid on the day it was generated
+        return DatasetCache.key(List.of(DataGenerator.class, ShardedFileWriter.class, DatasetSpec.class,
+                AliasSampler.class), "sharded", spec, seed, parallelism, LocalDate.now(), users, logins, bannedUsers);
+    }
+
     private void writeUsersFile() {
-        try (FileWriter writer = new FileWriter(USERS_FILE)) {
+        try (FileWriter writer = new FileWriter(usersFile)) {
             for (String user : users) {
                 writer.write(user + "\n");
             }
@@ -105,7 +196,7 @@ public class DataGenerator {
     }
 
     private void writeLoginsFile() {
-        try (FileWriter writer = new FileWriter(LOGINS_FILE)) {
+        try (FileWriter writer = new FileWriter(loginsFile)) {
             writer.write("login,last_login\n");
             for (Map.Entry<String, String> entry : logins.entrySet()) {
                 writer.write(entry.getKey() + "," + entry.getValue() + "\n");
@@ -118,16 +209,125 @@ public class DataGenerator {
     private void writeBannedFile() {
         try {
             ObjectMapper mapper = new ObjectMapper();
-            mapper.writeValue(new File(BANNED_FILE), new ArrayList<>(bannedUsers));
+            mapper.writeValue(new File(bannedFile), new ArrayList<>(bannedUsers));
         } catch (IOException e) {
             throw new RuntimeException("Failed to write banned file", e);
         }
     }
 
+    private void writeShardedFiles() {
+        ShardedFileWriter writer = new ShardedFileWriter(parallelism, MAX_ROW_LENGTH);
+        int userCount = spec.getKeys();
+
+        StringBuilder explicitUsers = new StringBuilder();
+        for (String user : users) {
+            // A generated user is already in users.txt; listing it again would check it twice
+            if (generatedIndex(user, userCount) < 0) {
+                explicitUsers.append(user).append('\n');
+            }
+        }
+        writer.write(Paths.get(usersFile), "", userCount, seed, (row, random, buffer) -> {
+            ShardedFileWriter.putAscii(buffer, userName(row));
+            buffer.put((byte) '\n');
+        }, explicitUsers.toString());
+
+        // The last users of users.txt never log in, which makes them inactive whatever the dates
+        int loggingInUsers = userCount - (int) (userCount * spec.getNullRate() + 1e-9);
+        DatasetSpec.KeySampler loginUsers = loggingInUsers == 0 ? null : spec.keySampler(loggingInUsers);
+        byte[][] dates = spec.renderDates();
+        // Explicit logins go ahead of the generated rows: the script and the reference both take a login's first row,
+        // so an explicit date replaces whatever was generated for the same user
+        StringBuilder loginsHeader = new StringBuilder("login,last_login\n");
+        for (Map.Entry<String, String> entry : logins.entrySet()) {
+            loginsHeader.append(entry.getKey()).append(',').append(entry.getValue()).append('\n');
+        }
+        long loginRows = loginUsers == null ? 0 : spec.getRows();
+        writer.write(Paths.get(loginsFile), loginsHeader.toString(), loginRows, seed + 1, (row, random, buffer) -> {
+            ShardedFileWriter.putAscii(buffer, userName(loginUsers.next(random)));
+            buffer.put((byte) ',');
+            buffer.put(dates[random.nextInt(dates.length)]);
+            buffer.put((byte) '\n');
+        }, "");
+
+        int bannedCount = (int) (userCount * spec.getBannedRate() + 1e-9);
+        StringBuilder explicitBanned = new StringBuilder();
+        try {
+            ObjectMapper mapper = new ObjectMapper();
+            for (String user : bannedUsers) {
+                if (bannedCount > 0 || explicitBanned.length() > 0) {
+                    explicitBanned.append(',');
+                }
+                explicitBanned.append(mapper.writeValueAsString(user));
+            }
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to write banned file", e);
+        }
+        writer.write(Paths.get(bannedFile), "[", bannedCount, seed + 2, (row, random, buffer) -> {
+            if (row > 0) {
+                buffer.put((byte) ',');
+            }
+            buffer.put((byte) '"');
+            ShardedFileWriter.putAscii(buffer, userName(random.nextInt(userCount)));
+            buffer.put((byte) '"');
+        }, explicitBanned.append(']').toString());
+    }
+
+    // The inverse of userName(index) for the first userCount users; -1 for any other name
+    private static long generatedIndex(String user, int userCount) {
+        for (int base = 0; base < USER_NAMES.length; base++) {
+            String name = USER_NAMES[base];
+            if (!user.startsWith(name)) {
+                continue;
+            }
+            String suffix = user.substring(name.length());
+            if (suffix.isEmpty()) {
+                return base < userCount ? base : -1;
+            }
+            if (suffix.length() > 10 || suffix.charAt(0) == '0' || !suffix.chars().allMatch(Character::isDigit)) {
+                continue;
+            }
+            long index = Long.parseLong(suffix);
+            if (index >= USER_NAMES.length && index % USER_NAMES.length == base && index < userCount) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public boolean hasFixedSeed() {
+        return seedFixed;
+    }
+
+    public boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    public String checksum() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1 << 16];
+            for (String file : new String[] { usersFile, loginsFile, bannedFile }) {
+                try (InputStream input = Files.newInputStream(Paths.get(file))) {
+                    int read;
+                    while ((read = input.read(buffer)) != -1) {
+                        digest.update(buffer, 0, read);
+                    }
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to checksum generated files", e);
+        }
+    }
+
     public void cleanupFiles() {
-        new File(USERS_FILE).delete();
-        new File(LOGINS_FILE).delete();
-        new File(BANNED_FILE).delete();
-        new File(Paths.get(DATA_DIR, "active_users.csv").toString()).delete();
+        new File(usersFile).delete();
+        new File(loginsFile).delete();
+        new File(bannedFile).delete();
+        new File(Paths.get(dataDir, "active_users.csv").toString()).delete();
     }
-}
\ No newline at end of file
+}
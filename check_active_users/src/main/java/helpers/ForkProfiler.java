@@ -0,0 +1,254 @@
+package helpers;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+// Counts the processes a script forks and the CPU each command burns, for scripts that fork a tool per input row
+public class ForkProfiler {
+    private static final Path PROC = Paths.get("/proc");
+    private static final boolean PROC_READABLE = Files.isReadable(PROC.resolve("self/stat"));
+    private static final long CLOCK_TICKS_PER_SECOND = 100;
+    private static final long DEFAULT_INTERVAL_MICROS = 1000;
+    // Listing a tree through its children files reads a handful of files instead of every process on the box
+    private static final boolean CHILDREN_FILES = Files.exists(PROC.resolve(
+            ProcessHandle.current().pid() + "/task/" + ProcessHandle.current().pid() + "/children"));
+
+    public static class Command {
+        public final String name;
+        public final int processes;
+        public final long cpuTimeMs;
+
+        Command(String name, int processes, long cpuTimeMs) {
+            this.name = name;
+            this.processes = processes;
+            this.cpuTimeMs = cpuTimeMs;
+        }
+    }
+
+    public static class Report {
+        public final long rows;
+        // Distinct processes seen in the script's tree, its own shell aside; one that starts and exits between two
+        // samples is missed, so a lower bound; -1 without /proc
+        public final long forks;
+        // Processes the whole host created while the script ran, less this JVM's own threads: an upper bound, as
+        // anything else forking on the box counts too; -1 without /proc
+        public final long hostForks;
+        // Everything the tree used, from the kernel's account of reaped children; -1 without /proc
+        public final long cpuTimeMs;
+        // Only what the samples caught, so a lower bound per command; most forked first
+        public final List<Command> commands;
+
+        Report(long rows, long forks, long hostForks, long cpuTimeMs, List<Command> commands) {
+            this.rows = rows;
+            this.forks = forks;
+            this.hostForks = hostForks;
+            this.cpuTimeMs = cpuTimeMs;
+            this.commands = commands;
+        }
+
+        // With no rows every fork is overhead, so it counts in full
+        public double getForksPerRow() {
+            return rows == 0 ? forks : (double) forks / rows;
+        }
+
+        // From the host-wide counter, so the script cannot have forked more; -1 without /proc
+        public double getMaxForksPerRow() {
+            if (hostForks < 0) {
+                return -1;
+            }
+            return rows == 0 ? hostForks : (double) hostForks / rows;
+        }
+
+        public Command getCommand(String name) {
+            return commands.stream().filter(command -> command.name.equals(name)).findFirst()
+                    .orElse(new Command(name, 0, 0));
+        }
+
+        public int getSampledProcesses() {
+            return commands.stream().mapToInt(command -> command.processes).sum();
+        }
+
+        public long getAttributedCpuTimeMs() {
+            return commands.stream().mapToLong(command -> command.cpuTimeMs).sum();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder(String.format(
+                    "%d forks seen for %d rows (%.2f per row; at most %d by the host-wide counter), %dms CPU; "
+                            + "%d processes sampled with %dms CPU between them:",
+                    forks, rows, getForksPerRow(), hostForks, cpuTimeMs, getSampledProcesses(),
+                    getAttributedCpuTimeMs()));
+            for (Command command : commands) {
+                report.append(String.format("%n  %-16s %6d processes %7dms CPU", command.name, command.processes,
+                        command.cpuTimeMs));
+            }
+            return report.toString();
+        }
+    }
+
+    // The last look at one process: its name changes from the forking shell's to the tool's when it execs
+    private static class Sighting {
+        String command;
+        long cpuTicks;
+    }
+
+    private final long intervalMicros;
+    // Keyed by pid and start time, so a recycled pid is counted as the new process it is
+    private final Map<String, Sighting> sightings = new HashMap<>();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private volatile boolean running;
+    private Thread thread;
+    private long rootPid;
+    private long startForks;
+    private long startThreads;
+    private long startCpuTimeMs;
+    private long hostForks = -1;
+    private long cpuTimeMs = -1;
+
+    public ForkProfiler() {
+        this(DEFAULT_INTERVAL_MICROS);
+    }
+
+    public ForkProfiler(long intervalMicros) {
+        this.intervalMicros = intervalMicros;
+    }
+
+    public ForkProfiler start(Process process) {
+        ProcessHandle root = process.toHandle();
+        rootPid = root.pid();
+        startForks = systemForkCount();
+        startThreads = threads.getTotalStartedThreadCount();
+        startCpuTimeMs = ProcessSampler.reapedChildrenCpuTimeMs();
+        running = true;
+
+        thread = new Thread(() -> {
+            while (running && root.isAlive()) {
+                sample(root);
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(intervalMicros));
+            }
+        }, "fork-profiler");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    // Called once the script has exited, so the kernel's counters hold all it did; later calls change nothing
+    public void stop() throws InterruptedException {
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        thread.interrupt();
+        thread.join();
+        thread = null;
+
+        long endForks = systemForkCount();
+        long endCpuTimeMs = ProcessSampler.reapedChildrenCpuTimeMs();
+        if (startForks >= 0 && endForks >= 0) {
+            // Thread creation is a fork to the kernel, and this JVM starts a few threads of its own per run
+            hostForks = Math.max(0, endForks - startForks - (threads.getTotalStartedThreadCount() - startThreads));
+        }
+        if (startCpuTimeMs >= 0 && endCpuTimeMs >= 0) {
+            cpuTimeMs = endCpuTimeMs - startCpuTimeMs;
+        }
+    }
+
+    public Report report(long rows) {
+        Map<String, int[]> processes = new HashMap<>();
+        Map<String, Long> cpuTicks = new HashMap<>();
+        long forks = 0;
+        for (Map.Entry<String, Sighting> entry : sightings.entrySet()) {
+            Sighting sighting = entry.getValue();
+            if (!entry.getKey().startsWith(rootPid + ":")) {
+                forks++;
+            }
+            processes.computeIfAbsent(sighting.command, command -> new int[1])[0]++;
+            cpuTicks.merge(sighting.command, sighting.cpuTicks, Long::sum);
+        }
+        List<Command> commands = processes.entrySet().stream()
+                .map(entry -> new Command(entry.getKey(), entry.getValue()[0],
+                        cpuTicks.get(entry.getKey()) * 1000 / CLOCK_TICKS_PER_SECOND))
+                .sorted(Comparator.comparingInt((Command command) -> command.processes).reversed()
+                        .thenComparing(command -> command.name))
+                .collect(Collectors.toList());
+        return new Report(rows, PROC_READABLE ? forks : -1, hostForks, cpuTimeMs, commands);
+    }
+
+    private void sample(ProcessHandle root) {
+        for (long pid : tree(root)) {
+            String stat;
+            try {
+                stat = Files.readString(PROC.resolve(pid + "/stat"), StandardCharsets.US_ASCII);
+            } catch (IOException e) {
+                // Exited between listing and reading
+                continue;
+            }
+            try {
+                String command = stat.substring(stat.indexOf('(') + 1, stat.lastIndexOf(')'));
+                // Fields after the command name: state(3) ... utime(14) stime(15) ... starttime(22)
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                Sighting sighting = sightings.computeIfAbsent(pid + ":" + fields[19], key -> new Sighting());
+                sighting.command = command;
+                // Only the process's own time: cutime would count its reaped children a second time
+                sighting.cpuTicks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+            } catch (RuntimeException e) {
+                // A zombie or a truncated read has nothing worth recording
+            }
+        }
+    }
+
+    private static List<Long> tree(ProcessHandle root) {
+        if (!CHILDREN_FILES) {
+            return root.descendants().map(ProcessHandle::pid).collect(Collectors.toList());
+        }
+        // The shells and tools a script runs are single-threaded, so the main thread's children are all of them
+        List<Long> tree = new ArrayList<>();
+        Deque<Long> pending = new ArrayDeque<>(List.of(root.pid()));
+        while (!pending.isEmpty()) {
+            long pid = pending.poll();
+            tree.add(pid);
+            try {
+                String children = Files.readString(PROC.resolve(pid + "/task/" + pid + "/children"),
+                        StandardCharsets.US_ASCII);
+                for (String child : children.trim().split(" ")) {
+                    if (!child.isEmpty()) {
+                        pending.add(Long.parseLong(child));
+                    }
+                }
+            } catch (IOException e) {
+                // Exited since its parent listed it
+            }
+        }
+        return tree;
+    }
+
+    // The kernel's running total of processes and threads created since boot; -1 without /proc
+    private static long systemForkCount() {
+        try {
+            for (String line : Files.readAllLines(PROC.resolve("stat"), StandardCharsets.US_ASCII)) {
+                if (line.startsWith("processes ")) {
+                    return Long.parseLong(line.substring("processes ".length()).trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux
+        }
+        return -1;
+    }
+}
@@ -11,9 +11,10 @@ import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Optional;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -23,9 +24,37 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 public class ResultAnalyser {
-    private static final String RESULT_FILE = Paths.get(System.getProperty("user.dir"), "data", "active_users.csv")
-            .toString();
+    private final String resultFile;
+    private final Path workDirectory;
     private List<UserRecord> records = new ArrayList<>();
+    private final List<Check> pendingChecks = new ArrayList<>();
+    private int outputScans;
+    private boolean inOnePass;
+
+    // An output assertion: it sees the header and every line of one scan, which it may share, and may fail at any point
+    private abstract static class Check {
+        private Throwable failure;
+
+        void header(String headerLine) {
+        }
+
+        void line(int lineNumber, String line) {
+        }
+
+        void record(UserRecord record) {
+        }
+
+        void finish() {
+        }
+
+        void apply(Runnable step) {
+            try {
+                step.run();
+            } catch (AssertionError | RuntimeException e) {
+                failure = e;
+            }
+        }
+    }
 
     public static class UserRecord {
         public final String login;
@@ -37,130 +66,222 @@ public class ResultAnalyser {
         }
     }
 
+    public ResultAnalyser(Workspace workspace) {
+        this.resultFile = workspace.dataFile("active_users.csv");
+        this.workDirectory = workspace.getRoot();
+    }
+
     public ResultAnalyser containsUser(String username) {
-        loadRecordsIfNeeded();
-        boolean found = records.stream().anyMatch(record -> record.login.equals(username));
-        assertTrue(found, "User " + username + " should be in active users");
-        return this;
+        return check(new Check() {
+            private boolean found;
+
+            @Override
+            void record(UserRecord record) {
+                found |= record.login.equals(username);
+            }
+
+            @Override
+            void finish() {
+                assertTrue(found, "User " + username + " should be in active users");
+            }
+        });
     }
 
     public ResultAnalyser doesNotContainUser(String username) {
-        loadRecordsIfNeeded();
-        boolean found = records.stream().anyMatch(record -> record.login.equals(username));
-        assertFalse(found, "User " + username + " should NOT be in active users");
-        return this;
+        return check(new Check() {
+            @Override
+            void record(UserRecord record) {
+                assertFalse(record.login.equals(username), "User " + username + " should NOT be in active users");
+            }
+        });
     }
 
     public ResultAnalyser containsUserWithDate(String username, String expectedDate) {
-        loadRecordsIfNeeded();
-        Optional<UserRecord> userRecord = records.stream()
-                .filter(record -> record.login.equals(username))
-                .findFirst();
+        return check(new Check() {
+            private UserRecord found;
 
-        assertTrue(userRecord.isPresent(), "User " + username + " should be in active users");
-        assertEquals(expectedDate, userRecord.get().lastLogin,
-                "User " + username + " should have last login date " + expectedDate);
-        return this;
+            @Override
+            void record(UserRecord record) {
+                if (found == null && record.login.equals(username)) {
+                    found = record;
+                }
+            }
+
+            @Override
+            void finish() {
+                assertTrue(found != null, "User " + username + " should be in active users");
+                assertEquals(expectedDate, found.lastLogin,
+                        "User " + username + " should have last login date " + expectedDate);
+            }
+        });
     }
 
     public ResultAnalyser hasUserCount(int expectedCount) {
-        loadRecordsIfNeeded();
-        assertEquals(expectedCount, records.size(),
-                "Active users count should be " + expectedCount);
-        return this;
+        return check(new Check() {
+            private int count;
+
+            @Override
+            void record(UserRecord record) {
+                count++;
+            }
+
+            @Override
+            void finish() {
+                assertEquals(expectedCount, count, "Active users count should be " + expectedCount);
+            }
+        });
     }
 
     public ResultAnalyser allUsersLoggedInWithinDays(int maxDays) {
-        loadRecordsIfNeeded();
         LocalDate cutoffDate = LocalDate.now().minusDays(maxDays);
+        return check(new Check() {
+            @Override
+            void record(UserRecord record) {
+                LocalDate loginDate = LocalDate.parse(record.lastLogin, DateTimeFormatter.ISO_LOCAL_DATE);
+                assertTrue(loginDate.isAfter(cutoffDate) || loginDate.isEqual(cutoffDate),
+                        "User " + record.login + " last login " + record.lastLogin +
+                                " should be within " + maxDays + " days");
+            }
+        });
+    }
 
-        for (UserRecord record : records) {
-            LocalDate loginDate = LocalDate.parse(record.lastLogin, DateTimeFormatter.ISO_LOCAL_DATE);
-            assertTrue(loginDate.isAfter(cutoffDate) || loginDate.isEqual(cutoffDate),
-                    "User " + record.login + " last login " + record.lastLogin +
-                            " should be within " + maxDays + " days");
-        }
+    // Streams the output against the expected rows in bounded memory; the script keeps users.txt order, so order counts
+    public ResultAnalyser matchesActiveUsers(List<UserRecord> expectedUsers) {
+        verify();
+        Iterator<String> expectedRows = expectedUsers.stream()
+                .map(user -> user.login + "," + user.lastLogin)
+                .iterator();
+        OutputDiff.Result diff = new OutputDiff(workDirectory)
+                .withRowOrder()
+                .compare(Paths.get(resultFile), "login,last_login", expectedRows);
+        assertTrue(diff.isIdentical(), "Active users should match the reference: " + diff);
         return this;
     }
 
     public ResultAnalyser hasNoDuplicates() {
-        loadRecordsIfNeeded();
-        Set<String> usernames = new HashSet<>();
-        List<String> duplicates = new ArrayList<>();
+        return check(new Check() {
+            private final Set<String> usernames = new HashSet<>();
+            private final List<String> duplicates = new ArrayList<>();
 
-        for (UserRecord record : records) {
-            if (!usernames.add(record.login)) {
-                duplicates.add(record.login);
+            @Override
+            void record(UserRecord record) {
+                if (!usernames.add(record.login)) {
+                    duplicates.add(record.login);
+                }
             }
-        }
 
-        assertTrue(duplicates.isEmpty(),
-                "Found duplicate users: " + String.join(", ", duplicates));
-        return this;
+            @Override
+            void finish() {
+                assertTrue(duplicates.isEmpty(), "Found duplicate users: " + String.join(", ", duplicates));
+            }
+        });
     }
 
+    // Only the previous login is kept: a list is sorted exactly when every adjacent pair is in order
     public ResultAnalyser isSortedByLogin() {
-        loadRecordsIfNeeded();
-        List<String> usernames = records.stream()
-                .map(record -> record.login)
-                .collect(Collectors.toList());
-
-        List<String> sortedUsernames = new ArrayList<>(usernames);
-        sortedUsernames.sort(String::compareTo);
+        return check(new Check() {
+            private String previous;
+            private int row;
 
-        assertEquals(sortedUsernames, usernames,
-                "Users should be sorted alphabetically by login");
-        return this;
+            @Override
+            void record(UserRecord record) {
+                row++;
+                assertTrue(previous == null || previous.compareTo(record.login) <= 0,
+                        "Users should be sorted alphabetically by login, but " + record.login + " (row " + row
+                                + ") follows " + previous);
+                previous = record.login;
+            }
+        });
     }
 
     public ResultAnalyser fileExists() {
-        Path resultPath = Paths.get(RESULT_FILE);
+        Path resultPath = Paths.get(resultFile);
         assertTrue(Files.exists(resultPath),
-                "Result file " + RESULT_FILE + " should exist");
+                "Result file " + resultFile + " should exist");
         return this;
     }
 
     public ResultAnalyser hasValidCsvFormat() {
-        loadRecordsIfNeeded();
+        return check(new Check() {
+            @Override
+            void header(String headerLine) {
+                assertNotNull(headerLine, "CSV file should have a header");
+                assertEquals("login,last_login", headerLine,
+                        "CSV header should be 'login,last_login'");
+            }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(RESULT_FILE))) {
-            String headerLine = reader.readLine();
-            assertNotNull(headerLine, "CSV file should have a header");
-            assertEquals("login,last_login", headerLine,
-                    "CSV header should be 'login,last_login'");
+            @Override
+            void line(int lineNumber, String line) {
+                if (line.trim().isEmpty()) {
+                    return;
+                }
+                String[] parts = line.split(",");
+                assertEquals(2, parts.length,
+                        "Line " + lineNumber + " should have exactly 2 columns");
 
-            String line;
-            int lineNumber = 2;
-            while ((line = reader.readLine()) != null) {
-                if (!line.trim().isEmpty()) {
-                    String[] parts = line.split(",");
-                    assertEquals(2, parts.length,
-                            "Line " + lineNumber + " should have exactly 2 columns");
-
-                    assertFalse(parts[0].trim().isEmpty(),
-                            "Login should not be empty on line " + lineNumber);
-
-                    try {
-                        LocalDate.parse(parts[1], DateTimeFormatter.ISO_LOCAL_DATE);
-                    } catch (Exception e) {
-                        fail("Invalid date format on line " + lineNumber + ": " + parts[1]);
-                    }
+                assertFalse(parts[0].trim().isEmpty(),
+                        "Login should not be empty on line " + lineNumber);
+
+                try {
+                    LocalDate.parse(parts[1], DateTimeFormatter.ISO_LOCAL_DATE);
+                } catch (Exception e) {
+                    fail("Invalid date format on line " + lineNumber + ": " + parts[1]);
                 }
-                lineNumber++;
             }
-        } catch (IOException e) {
-            fail("Failed to read result file: " + e.getMessage());
-        }
+        });
+    }
 
+    // Checks every output assertion the block makes in one read of the output, before returning, and fails with the
+    // first failure in chain order; outside such a block each assertion reads the output on its own
+    public ResultAnalyser inOnePass(Consumer<ResultAnalyser> assertions) {
+        if (inOnePass) {
+            assertions.accept(this);
+            return this;
+        }
+        inOnePass = true;
+        try {
+            assertions.accept(this);
+            verify();
+        } finally {
+            inOnePass = false;
+            pendingChecks.clear();
+        }
         return this;
     }
 
+    public int getOutputScans() {
+        return outputScans;
+    }
+
+    private void verify() {
+        if (pendingChecks.isEmpty()) {
+            return;
+        }
+        List<Check> checks = new ArrayList<>(pendingChecks);
+        pendingChecks.clear();
+        scan(checks);
+
+        for (Check check : checks) {
+            if (check.failure == null) {
+                check.apply(check::finish);
+            }
+            if (check.failure instanceof RuntimeException) {
+                throw (RuntimeException) check.failure;
+            }
+            if (check.failure != null) {
+                throw (AssertionError) check.failure;
+            }
+        }
+    }
+
     public int getUserCount() {
+        verify();
         loadRecordsIfNeeded();
         return records.size();
     }
 
     public List<String> getUsernames() {
+        verify();
         loadRecordsIfNeeded();
         return records.stream()
                 .map(record -> record.login)
@@ -176,23 +297,71 @@ public class ResultAnalyser {
     private void loadRecords() {
         records.clear();
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(RESULT_FILE))) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(resultFile))) {
+            String headerLine = reader.readLine();
+            if (headerLine == null) {
+                return;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                UserRecord record = parseRecord(line);
+                if (record != null) {
+                    records.add(record);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read result file: " + resultFile, e);
+        }
+    }
+
+    private ResultAnalyser check(Check check) {
+        pendingChecks.add(check);
+        if (!inOnePass) {
+            verify();
+        }
+        return this;
+    }
+
+    private void scan(List<Check> checks) {
+        outputScans++;
+        try (BufferedReader reader = new BufferedReader(new FileReader(resultFile), 1 << 16)) {
             String headerLine = reader.readLine();
+            for (Check check : checks) {
+                check.apply(() -> check.header(headerLine));
+            }
             if (headerLine == null) {
                 return;
             }
 
             String line;
+            int lineNumber = 2;
             while ((line = reader.readLine()) != null) {
-                if (!line.trim().isEmpty()) {
-                    String[] parts = line.split(",", 2);
-                    if (parts.length == 2) {
-                        records.add(new UserRecord(parts[0].trim(), parts[1].trim()));
+                UserRecord record = parseRecord(line);
+                for (Check check : checks) {
+                    if (check.failure == null) {
+                        try {
+                            check.line(lineNumber, line);
+                            if (record != null) {
+                                check.record(record);
+                            }
+                        } catch (AssertionError | RuntimeException e) {
+                            check.failure = e;
+                        }
                     }
                 }
+                lineNumber++;
             }
         } catch (IOException e) {
-            throw new RuntimeException("Failed to read result file: " + RESULT_FILE, e);
+            throw new RuntimeException("Failed to read result file: " + resultFile, e);
+        }
+    }
+
+    private static UserRecord parseRecord(String line) {
+        if (line.trim().isEmpty()) {
+            return null;
         }
+        String[] parts = line.split(",", 2);
+        return parts.length == 2 ? new UserRecord(parts[0].trim(), parts[1].trim()) : null;
     }
-}
\ No newline at end of file
+}
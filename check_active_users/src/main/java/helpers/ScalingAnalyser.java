@@ -0,0 +1,98 @@
+package helpers;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Fits timings to t = a + b * f(n) for each complexity class and picks the most plausible one
+public class ScalingAnalyser {
+    // A more complex model must cut the residual error by at least this factor to be preferred
+    private static final double REQUIRED_IMPROVEMENT = 0.5;
+
+    public static class Fit {
+        public final Complexity complexity;
+        public final double intercept;
+        public final double slope;
+        public final double squaredError;
+        public final double rSquared;
+
+        Fit(Complexity complexity, double intercept, double slope, double squaredError, double rSquared) {
+            this.complexity = complexity;
+            this.intercept = intercept;
+            this.slope = slope;
+            this.squaredError = squaredError;
+            this.rSquared = rSquared;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: t = %.2f + %.3g * f(n), R^2 = %.4f", complexity, intercept, slope, rSquared);
+        }
+    }
+
+    private final Map<Long, Double> timings = new LinkedHashMap<>();
+
+    public void addTiming(long size, double timeMs) {
+        timings.put(size, timeMs);
+    }
+
+    public List<Fit> fit() {
+        List<Fit> fits = new ArrayList<>();
+        for (Complexity complexity : Complexity.values()) {
+            fits.add(fit(complexity));
+        }
+        return fits;
+    }
+
+    public Complexity bestFit() {
+        Fit best = null;
+        for (Fit fit : fit()) {
+            if (best == null || fit.squaredError < best.squaredError * REQUIRED_IMPROVEMENT) {
+                best = fit;
+            }
+        }
+        return best.complexity;
+    }
+
+    private Fit fit(Complexity complexity) {
+        int count = timings.size();
+        double meanX = 0;
+        double meanY = 0;
+        for (Map.Entry<Long, Double> timing : timings.entrySet()) {
+            meanX += complexity.apply(timing.getKey()) / count;
+            meanY += timing.getValue() / count;
+        }
+
+        double covariance = 0;
+        double variance = 0;
+        for (Map.Entry<Long, Double> timing : timings.entrySet()) {
+            double dx = complexity.apply(timing.getKey()) - meanX;
+            covariance += dx * (timing.getValue() - meanY);
+            variance += dx * dx;
+        }
+
+        // Running time cannot shrink with input size, so a negative slope degrades to a constant
+        double slope = variance == 0 ? 0 : Math.max(0, covariance / variance);
+        double intercept = meanY - slope * meanX;
+
+        double squaredError = 0;
+        double totalSquares = 0;
+        for (Map.Entry<Long, Double> timing : timings.entrySet()) {
+            double residual = timing.getValue() - intercept - slope * complexity.apply(timing.getKey());
+            squaredError += residual * residual;
+            totalSquares += (timing.getValue() - meanY) * (timing.getValue() - meanY);
+        }
+        double rSquared = totalSquares == 0 ? 1 : 1 - squaredError / totalSquares;
+
+        return new Fit(complexity, intercept, slope, squaredError, rSquared);
+    }
+
+    public String report() {
+        StringBuilder report = new StringBuilder("timings(ms) by size: ").append(timings).append('\n');
+        for (Fit fit : fit()) {
+            report.append(fit).append('\n');
+        }
+        return report.append("best fit: ").append(bestFit()).toString();
+    }
+}
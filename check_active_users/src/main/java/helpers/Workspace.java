@@ -0,0 +1,81 @@
+package helpers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+// Private temporary directory of one scenario: generated inputs, the script's working directory and its results
+public class Workspace {
+    private static final String PREFIX = "check-active-users-";
+    private static final Set<Path> OPEN_WORKSPACES = ConcurrentHashMap.newKeySet();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(
+                () -> OPEN_WORKSPACES.forEach(Workspace::deleteRecursively), "workspace-cleanup"));
+    }
+
+    private final Path root;
+
+    public Workspace() {
+        try {
+            root = Files.createTempDirectory(PREFIX);
+            Files.createDirectories(getDataDir());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create workspace", e);
+        }
+        OPEN_WORKSPACES.add(root);
+    }
+
+    private Workspace(Path root) {
+        this.root = root;
+        try {
+            Files.createDirectories(getDataDir());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create workspace " + root, e);
+        }
+    }
+
+    // A directory of its own inside this workspace, deleted along with it
+    public Workspace child(String name) {
+        return new Workspace(root.resolve(name));
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public Path getDataDir() {
+        return root.resolve("data");
+    }
+
+    public String dataFile(String fileName) {
+        return getDataDir().resolve(fileName).toString();
+    }
+
+    public void delete() {
+        deleteRecursively(root);
+        OPEN_WORKSPACES.remove(root);
+    }
+
+    private static void deleteRecursively(Path directory) {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            // Leftovers in the temp directory are harmless
+        }
+    }
+}
@@ -1,15 +1,18 @@
+import helpers.CapacitySearch;
+import helpers.ForkProfiler;
+import helpers.LineProfiler;
+import helpers.LoadRunner;
+import helpers.ScriptRunner;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.parallel.Isolated;
 
-public class CheckActiveUsersTest {
+import java.time.LocalDate;
 
-    @BeforeEach
-    public void setUp() {
-        new TestScenario().cleanupTestFiles();
-    }
+public class CheckActiveUsersTest {
 
     @AfterEach
     public void tearDown() {
-        new TestScenario().cleanupTestFiles();
+        TestScenario.deleteWorkspaces();
     }
 
     @Test
@@ -153,7 +156,63 @@ public class CheckActiveUsersTest {
                 .hasValidCsvFormat();
     }
 
+    @Test
+    public void checkingGeneratedDatasetMatchesReferenceImplementation() {
+        new TestScenario()
+                .given()
+                .generateShardedDataset(300, 600)
+                .withUser("future")
+                .withLogin("future", -3)
+                .withUser("unparseable")
+                .withLogin("unparseable", "not-a-date")
+                .withBannedUser("bob")
+                .writeTestFiles()
+                .when()
+                .executeScript()
+                .then()
+                .exitCodeIs(0)
+                .matchesReferenceImplementation();
+    }
+
+    @Test
+    public void explicitLoginsOverrideShardedUsers() {
+        new TestScenario()
+                .given()
+                .withSeed(42L)
+                .generateShardedDataset(10, 50)
+                .withLogin("bob", 40)
+                .withLogin("carol", 1)
+                .withUser("dave")
+                .writeTestFiles()
+                .when()
+                .executeScript()
+                .then()
+                .exitCodeIs(0)
+                .doesNotContainUser("bob")
+                .containsUserWithDate("carol", LocalDate.now().minusDays(1).toString())
+                .hasNoDuplicates()
+                .matchesReferenceImplementation();
+    }
+
+    @Test
+    public void datasetDescribedBySpecMatchesReferenceImplementation() {
+        new TestScenario()
+                .given()
+                .generateDataset("datasets/production-shaped.properties")
+                .writeTestFiles()
+                .when()
+                .executeScript()
+                .then()
+                .exitCodeIs(0)
+                // The last fifth of users.txt never logs in
+                .doesNotContainUser("jack299")
+                .hasNoDuplicates()
+                .allUsersLoggedInWithinDays(30)
+                .matchesReferenceImplementation();
+    }
+
     @Nested
+    @Isolated("Timings and resource usage are only meaningful while nothing else runs")
     @DisplayName("Non-functional Performance Tests")
     class NonFunctionalTests {
 
@@ -164,10 +223,11 @@ public class CheckActiveUsersTest {
                     .generateLargeDataset(10, 10)
                     .writeTestFiles()
                     .when()
-                    .executeScript()
+                    .measureExecutionTime()
                     .then()
                     .exitCodeIs(0)
-                    .executionTimeWithin(1000L);
+                    .p90Within(1000L)
+                    .hasNoPerformanceRegression();
         }
 
         @Test
@@ -177,10 +237,10 @@ public class CheckActiveUsersTest {
                     .generateLargeDataset(100, 100)
                     .writeTestFiles()
                     .when()
-                    .executeScript()
+                    .measureExecutionTime()
                     .then()
                     .exitCodeIs(0)
-                    .executionTimeWithin(3000L);
+                    .p90Within(3000L);
         }
 
         @Test
@@ -209,6 +269,19 @@ public class CheckActiveUsersTest {
                     .memoryUsageWithin(50 * 1024 * 1024L);
         }
 
+        @Test
+        public void cpuUsageIsWithinLimits() {
+            new TestScenario()
+                    .given()
+                    .generateLargeDataset(1000, 1000)
+                    .writeTestFiles()
+                    .when()
+                    .executeScript()
+                    .then()
+                    .exitCodeIs(0)
+                    .cpuTimeWithin(10000L);
+        }
+
         @Test
         public void performanceIsAcceptableForLargeDataset() {
             new TestScenario()
@@ -291,6 +364,205 @@ public class CheckActiveUsersTest {
             Assertions.assertTrue(scalingFactor <= 10.0,
                     "Scaling should be reasonable: " + scalingFactor + "x");
         }
+
+        @Test
+        public void concurrentInstancesWithIsolatedOutputsStayIntact() {
+            new TestScenario()
+                    .given()
+                    .generateLargeDataset(100, 100)
+                    .writeTestFiles()
+                    .when()
+                    .runConcurrently(3, LoadRunner.OutputMode.ISOLATED)
+                    .then()
+                    .concurrentOutputIsIntact();
+        }
+
+        @Test
+        public void forkProfileShowsPerUserLookups() {
+            TestScenario scenario = new TestScenario()
+                    .given()
+                    .generateLargeDataset(200, 200)
+                    .writeTestFiles()
+                    .when()
+                    .withForkProfile()
+                    .executeScript()
+                    .then()
+                    .exitCodeIs(0)
+                    // A grep | cut | head pipeline and a date call, each in a command substitution, per user
+                    .forksPerRowAtMost(6.1);
+
+            ForkProfiler.Report profile = scenario.getForkProfile();
+            Assertions.assertTrue(profile.getCommand("grep").processes > 0 && profile.getCommand("date").processes > 0,
+                    "The per-user lookups should show up in the samples: " + profile);
+        }
+
+        @Test
+        public void lineProfileTimesEveryLineOfTheScript() {
+            LineProfiler.Report profile = new TestScenario()
+                    .given()
+                    .generateLargeDataset(200, 200)
+                    .writeTestFiles()
+                    .when()
+                    .withLineProfile()
+                    .executeScript()
+                    .then()
+                    .exitCodeIs(0)
+                    // The grep | cut | head lookup of each user's last login
+                    .hottestLineIs(36)
+                    .getLineProfile();
+
+            Assertions.assertEquals(200, profile.getLine(28).count, "Every user should pass the loop once: " + profile);
+            Assertions.assertTrue(profile.getLine(46).count > 0, "Active candidates should reach date: " + profile);
+        }
+
+        @Test
+        public void throughputIsReportedInRowsAndBytes() {
+            TestScenario scenario = new TestScenario()
+                    .given()
+                    .generateLargeDataset(200, 200)
+                    .writeTestFiles()
+                    .when()
+                    .executeScript()
+                    .then()
+                    .exitCodeIs(0)
+                    .throughputAtLeast(50);
+
+            ScriptRunner.Throughput throughput = scenario.getThroughput();
+            Assertions.assertEquals(200, throughput.rowsIn, throughput.toString());
+            Assertions.assertEquals(3, throughput.inputs.size(), throughput.toString());
+            Assertions.assertEquals(scenario.getUserCount(), throughput.rowsOut, throughput.toString());
+            Assertions.assertTrue(throughput.getMegabytesOutPerSecond() > 0, throughput.toString());
+        }
+
+        @Test
+        public void capacitySearchBracketsTheLargestDatasetWithinBudget() {
+            CapacitySearch.Result capacity = new TestScenario()
+                    .when()
+                    .findCapacityWithin(1000L)
+                    .then()
+                    .getCapacity();
+
+            // How many users fit in the budget depends on the host, so only the search itself is checked
+            Assertions.assertTrue(capacity.capacity > 0 && capacity.firstOverBudget != Long.MAX_VALUE,
+                    "The search should bracket the capacity: " + capacity);
+            Assertions.assertTrue(capacity.probes.stream().anyMatch(probe -> probe.size == capacity.capacity
+                    && probe.exitCode == 0 && !probe.killed && probe.elapsedMs <= 1000L),
+                    "The capacity should be a size that was probed within budget: " + capacity);
+            Assertions.assertTrue(capacity.probes.stream().anyMatch(probe -> probe.size == capacity.firstOverBudget
+                    && (probe.killed || probe.elapsedMs > 1000L)),
+                    "The first size over budget should be a size that was probed over it: " + capacity);
+            Assertions.assertTrue(capacity.firstOverBudget <= capacity.capacity * 1.05 + 1,
+                    "The search should narrow down to within 5%: " + capacity);
+            Assertions.assertTrue(capacity.probes.stream().allMatch(probe -> probe.elapsedMs < 1000L + 2000L),
+                    "Probes over budget should be killed at it: " + capacity);
+        }
+
+        @Test
+        public void shardedDatasetIsReproducibleRegardlessOfCoreCount() {
+            String singleCore = new TestScenario()
+                    .given()
+                    .withSeed(42L)
+                    .withParallelism(1)
+                    .generateShardedDataset(50_000, 100_000)
+                    .withBannedUser("alice")
+                    .writeTestFiles()
+                    .getGeneratedDataChecksum();
+
+            String multiCore = new TestScenario()
+                    .given()
+                    .withSeed(42L)
+                    .withParallelism(8)
+                    .generateShardedDataset(50_000, 100_000)
+                    .withBannedUser("alice")
+                    .writeTestFiles()
+                    .getGeneratedDataChecksum();
+
+            Assertions.assertEquals(singleCore, multiCore,
+                    "Same seed should produce byte-identical datasets");
+        }
+
+        @Test
+        public void referenceImplementationChecksMillionUsersInLinearTime() {
+            new TestScenario()
+                    .given()
+                    .withSeed(42L)
+                    .generateShardedDataset(1_000_000, 2_000_000)
+                    .writeTestFiles()
+                    .when()
+                    .executeReferenceImplementation()
+                    .then()
+                    .inOnePass(then -> then
+                            .fileExists()
+                            .hasValidCsvFormat()
+                            .hasNoDuplicates()
+                            .allUsersLoggedInWithinDays(30))
+                    .referenceExecutionTimeWithin(20000L);
+        }
+
+        @Test
+        public void chainedAssertionsShareOneReadOfTheOutput() {
+            TestScenario scenario = new TestScenario()
+                    .given()
+                    .withSeed(42L)
+                    .generateShardedDataset(200_000, 400_000)
+                    .withUser("batched_alice")
+                    .withLogin("batched_alice", 2)
+                    .writeTestFiles()
+                    .when()
+                    .executeReferenceImplementation()
+                    .then()
+                    .inOnePass(then -> then
+                            .fileExists()
+                            .hasValidCsvFormat()
+                            .hasNoDuplicates()
+                            .allUsersLoggedInWithinDays(30)
+                            .containsUser("batched_alice")
+                            .doesNotContainUser("batched_nobody"));
+
+            Assertions.assertEquals(1, scenario.getOutputScans(),
+                    "All batched assertions should be answered by a single read of active_users.csv");
+        }
+
+        @Test
+        public void failingOutputAssertionFailsWhereItIsMade() {
+            TestScenario scenario = new TestScenario()
+                    .given()
+                    .withSeed(42L)
+                    .generateShardedDataset(1_000, 2_000)
+                    .writeTestFiles()
+                    .when()
+                    .executeReferenceImplementation()
+                    .then();
+
+            Assertions.assertThrows(AssertionError.class, () -> scenario.containsUser("missing_user"),
+                    "An output assertion should fail as it is called, with no terminal call or extension");
+            Assertions.assertThrows(AssertionError.class, () -> scenario.inOnePass(then -> then
+                            .hasNoDuplicates()
+                            .containsUser("missing_user")),
+                    "A batch should fail before inOnePass() returns");
+            Assertions.assertEquals(2, scenario.getOutputScans(),
+                    "Each call should read active_users.csv once");
+        }
+
+        @Test
+        public void seededDatasetIsServedFromCacheOnRepeat() {
+            String generated = new TestScenario()
+                    .given()
+                    .withSeed(4242L)
+                    .generateShardedDataset(50_000, 100_000)
+                    .writeTestFiles()
+                    .getGeneratedDataChecksum();
+
+            TestScenario repeated = new TestScenario()
+                    .given()
+                    .withSeed(4242L)
+                    .generateShardedDataset(50_000, 100_000)
+                    .writeTestFiles();
+            Assertions.assertTrue(repeated.isDatasetCacheHit(),
+                    "Same seed and size should be served from the dataset cache");
+            Assertions.assertEquals(generated, repeated.getGeneratedDataChecksum(),
+                    "Cached dataset should be byte-identical to the generated one");
+        }
     }
 
     @Nested
@@ -299,15 +571,16 @@ public class CheckActiveUsersTest {
 
         @Test
         public void missingUsersFileProducesError() {
-            new TestScenario()
+            TestScenario scenario = new TestScenario();
+            scenario
                     .given()
                     .withUser("alice")
                     .withLogin("alice", 5)
                     .writeTestFiles()
                     .when()
                     .executeScript("nonexistent.txt",
-                            System.getProperty("user.dir") + "/data/logins.csv",
-                            System.getProperty("user.dir") + "/data/banned.json")
+                            scenario.getDataFile("logins.csv"),
+                            scenario.getDataFile("banned.json"))
                     .then()
                     .exitCodeIs(1)
                     .containsError("❌ One of the input files not found.");
@@ -315,15 +588,16 @@ public class CheckActiveUsersTest {
 
         @Test
         public void missingLoginsFileProducesError() {
-            new TestScenario()
+            TestScenario scenario = new TestScenario();
+            scenario
                     .given()
                     .withUser("alice")
                     .withLogin("alice", 5)
                     .writeTestFiles()
                     .when()
-                    .executeScript(System.getProperty("user.dir") + "/data/users.txt",
+                    .executeScript(scenario.getDataFile("users.txt"),
                             "nonexistent.csv",
-                            System.getProperty("user.dir") + "/data/banned.json")
+                            scenario.getDataFile("banned.json"))
                     .then()
                     .exitCodeIs(1)
                     .containsError("❌ One of the input files not found.");
@@ -331,14 +605,15 @@ public class CheckActiveUsersTest {
 
         @Test
         public void missingBannedFileProducesError() {
-            new TestScenario()
+            TestScenario scenario = new TestScenario();
+            scenario
                     .given()
                     .withUser("alice")
                     .withLogin("alice", 5)
                     .writeTestFiles()
                     .when()
-                    .executeScript(System.getProperty("user.dir") + "/data/users.txt",
-                            System.getProperty("user.dir") + "/data/logins.csv",
+                    .executeScript(scenario.getDataFile("users.txt"),
+                            scenario.getDataFile("logins.csv"),
                             "nonexistent.json")
                     .then()
                     .exitCodeIs(1)
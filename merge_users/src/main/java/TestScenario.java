@@ -1,19 +1,67 @@
+import helpers.CapacitySearch;
+import helpers.Complexity;
 import helpers.DataGenerator;
+import helpers.DatasetSpec;
+import helpers.ForkProfiler;
+import helpers.LatencyStatistics;
+import helpers.LineProfiler;
+import helpers.LoadRunner;
+import helpers.PerformanceHistory;
 import helpers.ResultAnalyser;
+import helpers.ScalingAnalyser;
 import helpers.ScriptRunner;
+import helpers.UserMerger;
+import helpers.Workspace;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
 
 public class TestScenario {
+    private static final int SCALING_GROWTH_FACTOR = 2;
+    private static final int SCALING_REPETITIONS = 3;
+    private static final int CAPACITY_START_SIZE = 10;
+    private static final int CAPACITY_MAX_SIZE = 100_000;
+    // Every search probes with the same seed, so a size generated once is reused from the dataset cache
+    private static final long CAPACITY_SEED = 1L;
+    private static final int MEASUREMENT_WARMUP_ITERATIONS = 2;
+    private static final int MEASUREMENT_MIN_ITERATIONS = 5;
+    private static final int MEASUREMENT_MAX_ITERATIONS = 30;
+    private static final double MEASUREMENT_MAX_RELATIVE_CI = 0.1;
+
+    // The workspaces of the scenarios a test thread created, deleted by deleteWorkspaces() once the test is done
+    private static final ThreadLocal<List<Workspace>> THREAD_WORKSPACES = ThreadLocal.withInitial(ArrayList::new);
+
+    private Workspace workspace;
     private DataGenerator dataGenerator;
     private ScriptRunner scriptRunner;
     private ResultAnalyser resultAnalyser;
+    private ScalingAnalyser scalingAnalyser;
+    private LoadRunner.Report loadReport;
+    private CapacitySearch.Result capacity;
+    private UserMerger userMerger;
 
     public TestScenario() {
-        this.dataGenerator = new DataGenerator();
-        this.scriptRunner = new ScriptRunner();
-        this.resultAnalyser = new ResultAnalyser();
+        this.workspace = new Workspace();
+        THREAD_WORKSPACES.get().add(workspace);
+        this.dataGenerator = new DataGenerator(workspace);
+        this.scriptRunner = new ScriptRunner(workspace);
+        this.resultAnalyser = new ResultAnalyser(workspace);
+        this.userMerger = new UserMerger();
+    }
+
+    // Called after each test, on the thread that ran it, so fixtures do not pile up for the rest of the run
+    public static void deleteWorkspaces() {
+        List<Workspace> workspaces = THREAD_WORKSPACES.get();
+        workspaces.forEach(Workspace::delete);
+        workspaces.clear();
     }
 
     public TestScenario given() {
@@ -51,6 +99,30 @@ public class TestScenario {
         return this;
     }
 
+    public TestScenario generateShardedDataset(int userCount) {
+        dataGenerator.generateShardedDataset(userCount);
+        return this;
+    }
+
+    public TestScenario generateDataset(DatasetSpec spec) {
+        dataGenerator.generateDataset(spec);
+        return this;
+    }
+
+    public TestScenario generateDataset(String specResource) {
+        return generateDataset(DatasetSpec.fromResource(specResource));
+    }
+
+    public TestScenario withSeed(long seed) {
+        dataGenerator.withSeed(seed);
+        return this;
+    }
+
+    public TestScenario withParallelism(int parallelism) {
+        dataGenerator.withParallelism(parallelism);
+        return this;
+    }
+
     public TestScenario writeTestFiles() {
         dataGenerator.writeFiles();
         return this;
@@ -61,21 +133,89 @@ public class TestScenario {
         return this;
     }
 
+    // Runs past the deadline are killed with their whole process tree and fail the test straight away
+    public TestScenario withDeadline(long maxTimeMs) {
+        scriptRunner.withDeadline(maxTimeMs);
+        return this;
+    }
+
+    // Counts the processes seen in the script's tree and samples which commands they run and the CPU each one uses
+    public TestScenario withForkProfile() {
+        scriptRunner.withForkProfile();
+        return this;
+    }
+
+    // Traces the script line by line and times each line, without touching the script itself
+    public TestScenario withLineProfile() {
+        scriptRunner.withLineProfile();
+        return this;
+    }
+
+    public TestScenario withOutputLimit(int headLines, int tailLines) {
+        scriptRunner.withOutputLimit(headLines, tailLines);
+        return this;
+    }
+
     public TestScenario executeScript() {
         scriptRunner.executeScript();
+        requireWithinDeadline();
         return this;
     }
 
     public TestScenario executeScript(String usersFile, String jsonFile, String csvFile) {
         scriptRunner.executeScript(usersFile, jsonFile, csvFile);
+        requireWithinDeadline();
+        return this;
+    }
+
+    // Produces full_users.csv in-process, for datasets far beyond what the script can finish
+    public TestScenario executeReferenceImplementation() {
+        userMerger.writeMergedUsers(Paths.get(workspace.dataFile("users.txt")),
+                Paths.get(workspace.dataFile("users.json")), Paths.get(workspace.dataFile("users.csv")),
+                Paths.get(workspace.dataFile("full_users.csv")));
+        return this;
+    }
+
+    // Runs a solo baseline, then the instances together over the same input, and compares every output with it
+    public TestScenario runConcurrently(int instances, LoadRunner.OutputMode outputMode) {
+        loadReport = new LoadRunner(workspace).run(instances, outputMode);
         return this;
     }
 
+    private void requireWithinDeadline() {
+        ScriptRunner.DeadlineExceeded exceeded = scriptRunner.getDeadlineExceeded();
+        if (exceeded != null) {
+            fail("Script exceeded its deadline: " + exceeded);
+        }
+    }
+
+    // Output assertions after then() each read the result file as they are called; inOnePass() answers a chain
+    // with one read, which chains over large outputs should use
     public TestScenario then() {
 
         return this;
     }
 
+    // Chains the given output assertions so they are all answered by one read of the result file
+    public TestScenario inOnePass(Consumer<TestScenario> assertions) {
+        resultAnalyser.inOnePass(analyser -> assertions.accept(this));
+        return this;
+    }
+
+    public TestScenario matchesReferenceImplementation() {
+        resultAnalyser.matchesMergedUsers(userMerger.merge(Paths.get(workspace.dataFile("users.txt")),
+                Paths.get(workspace.dataFile("users.json")), Paths.get(workspace.dataFile("users.csv"))));
+        return this;
+    }
+
+    public TestScenario referenceExecutionTimeWithin(long maxTimeMs) {
+        long actualTime = userMerger.getElapsedTimeMs();
+        assertTrue(actualTime <= maxTimeMs,
+                "Reference merge time " + actualTime + "ms should be within " + maxTimeMs + "ms (" +
+                        userMerger.getRowsProcessed() + " users, " + userMerger.getBytesProcessed() + " bytes)");
+        return this;
+    }
+
     public TestScenario containsUser(String login) {
         resultAnalyser.containsUser(login);
         return this;
@@ -129,7 +269,44 @@ public class TestScenario {
         return this;
     }
 
+    public TestScenario measureExecutionTime() {
+        return measureExecutionTime(MEASUREMENT_WARMUP_ITERATIONS, MEASUREMENT_MIN_ITERATIONS,
+                MEASUREMENT_MAX_ITERATIONS);
+    }
+
+    public TestScenario measureExecutionTime(int warmupIterations, int minIterations, int maxIterations) {
+        scriptRunner.measure(warmupIterations, minIterations, maxIterations, MEASUREMENT_MAX_RELATIVE_CI);
+        requireWithinDeadline();
+        return this;
+    }
+
+    public TestScenario p50Within(long maxTimeMs) {
+        return percentileWithin(50, maxTimeMs);
+    }
+
+    public TestScenario p90Within(long maxTimeMs) {
+        return percentileWithin(90, maxTimeMs);
+    }
+
+    public TestScenario p99Within(long maxTimeMs) {
+        return percentileWithin(99, maxTimeMs);
+    }
+
+    public TestScenario percentileWithin(int percentile, long maxTimeMs) {
+        LatencyStatistics statistics = scriptRunner.getLatencyStatistics();
+        assertNotNull(statistics, "measureExecutionTime() should run before percentile assertions");
+        double actualTime = statistics.percentileMs(percentile);
+        assertTrue(actualTime <= maxTimeMs,
+                "p" + percentile + " execution time " + actualTime + "ms should be within " + maxTimeMs + "ms ("
+                        + statistics + ")");
+        return this;
+    }
+
     public TestScenario executionTimeWithin(long maxTimeMs) {
+        // A measured series is judged by its p90 rather than by whichever run happened to be last
+        if (scriptRunner.getLatencyStatistics() != null) {
+            return p90Within(maxTimeMs);
+        }
         long actualTime = scriptRunner.getExecutionTimeMs();
         assertTrue(actualTime <= maxTimeMs,
                 "Execution time " + actualTime + "ms should be within " + maxTimeMs + "ms");
@@ -143,6 +320,13 @@ public class TestScenario {
         return this;
     }
 
+    public TestScenario cpuTimeWithin(long maxCpuTimeMs) {
+        long actualCpuTime = scriptRunner.getCpuTimeMs();
+        assertTrue(actualCpuTime <= maxCpuTimeMs,
+                "CPU time " + actualCpuTime + "ms should be within " + maxCpuTimeMs + "ms");
+        return this;
+    }
+
     public TestScenario performanceIsAcceptable(long maxTimeMs, long maxMemoryBytes) {
         boolean acceptable = scriptRunner.isPerformanceAcceptable(maxTimeMs, maxMemoryBytes);
         assertTrue(acceptable,
@@ -152,6 +336,139 @@ public class TestScenario {
         return this;
     }
 
+    // Input rows per second; a measured series is judged at its median latency
+    public TestScenario throughputAtLeast(double minRowsPerSecond) {
+        ScriptRunner.Throughput throughput = scriptRunner.getThroughput();
+        assertNotNull(throughput, "The script should run before throughput assertions");
+        assertTrue(throughput.getRowsInPerSecond() >= minRowsPerSecond,
+                "Throughput should be at least " + minRowsPerSecond + " rows/s: " + throughput);
+        return this;
+    }
+
+    public TestScenario inputMegabytesPerSecondAtLeast(double minMegabytesPerSecond) {
+        ScriptRunner.Throughput throughput = scriptRunner.getThroughput();
+        assertNotNull(throughput, "The script should run before throughput assertions");
+        assertTrue(throughput.getMegabytesInPerSecond() >= minMegabytesPerSecond,
+                "Input throughput should be at least " + minMegabytesPerSecond + " MB/s: " + throughput);
+        return this;
+    }
+
+    public TestScenario outputLineCountIs(long expectedLineCount) {
+        long actualLineCount = scriptRunner.getOutputLineCount();
+        assertEquals(expectedLineCount, actualLineCount,
+                "Expected " + expectedLineCount + " output lines but got " + actualLineCount +
+                        " (" + scriptRunner.getOutputBytes() + " bytes)");
+        return this;
+    }
+
+    public TestScenario forksPerRowAtMost(double maxForksPerRow) {
+        ForkProfiler.Report profile = scriptRunner.getForkProfile();
+        assertNotNull(profile, "withForkProfile() should be set before the script runs");
+        assertTrue(profile.hostForks >= 0, "Fork counts need /proc: " + profile);
+        // The sighted forks can only undercount, so the bound is checked against the host-wide counter
+        assertTrue(profile.getMaxForksPerRow() <= maxForksPerRow,
+                "Script should fork at most " + maxForksPerRow + " processes per row: " + profile);
+        return this;
+    }
+
+    public TestScenario hottestLineIs(int lineNumber) {
+        LineProfiler.Report profile = scriptRunner.getLineProfile();
+        assertNotNull(profile, "withLineProfile() should be set before the script runs");
+        assertFalse(profile.lines.isEmpty(), "The script should leave a trace: " + profile);
+        assertEquals(lineNumber, profile.getHottest(1).get(0).number,
+                "Line " + lineNumber + " should take the most time: " + profile);
+        return this;
+    }
+
+    public TestScenario scalingIsAtMost(Complexity maxComplexity, int startSize, int steps) {
+        return scalingIsAtMost(maxComplexity, startSize, steps, SCALING_REPETITIONS);
+    }
+
+    public TestScenario scalingIsAtMost(Complexity maxComplexity, int startSize, int steps, int repetitions) {
+        scalingAnalyser = new ScalingAnalyser();
+        int size = startSize;
+        for (int step = 0; step < steps; step++) {
+            DataGenerator generator = new DataGenerator(workspace).withSeed(dataGenerator.getSeed());
+            if (!dataGenerator.hasFixedSeed()) {
+                // A one-off random seed is never asked for again, so its datasets are not worth caching
+                generator.withoutCache();
+            }
+            generator.generateShardedDataset(size).writeFiles();
+
+            // Noise only ever adds time, so the fastest of several runs is the truest point on the curve
+            long fastestTime = Long.MAX_VALUE;
+            for (int run = 0; run < repetitions; run++) {
+                scriptRunner.executeScript();
+                requireWithinDeadline();
+                assertEquals(0, scriptRunner.getExitCode(), "Script failed for size " + size);
+                fastestTime = Math.min(fastestTime, scriptRunner.getExecutionTimeMs());
+            }
+            scalingAnalyser.addTiming(size, fastestTime);
+
+            size *= SCALING_GROWTH_FACTOR;
+        }
+
+        Complexity actualComplexity = scalingAnalyser.bestFit();
+        assertTrue(actualComplexity.compareTo(maxComplexity) <= 0,
+                "Scaling should be at most " + maxComplexity + " but was " + actualComplexity + "\n" +
+                        scalingAnalyser.report());
+        return this;
+    }
+
+    public TestScenario concurrentOutputIsIntact() {
+        assertNotNull(loadReport, "runConcurrently() should run before concurrency assertions");
+        assertTrue(loadReport.allSucceeded() && !loadReport.isCorrupted(),
+                "Every concurrent instance should succeed with intact output: " + loadReport);
+        return this;
+    }
+
+    public TestScenario concurrentThroughputAtLeast(double minRowsPerSecond) {
+        assertNotNull(loadReport, "runConcurrently() should run before concurrency assertions");
+        assertTrue(loadReport.getRowsPerSecond() >= minRowsPerSecond,
+                "Aggregate throughput should be at least " + (long) minRowsPerSecond + " rows/s: " + loadReport);
+        return this;
+    }
+
+    public TestScenario findCapacityWithin(long maxTimeMs) {
+        return findCapacity(newCapacitySearch().withTimeBudget(maxTimeMs));
+    }
+
+    public TestScenario findCapacityWithinMemory(long maxMemoryBytes) {
+        return findCapacity(newCapacitySearch().withMemoryBudget(maxMemoryBytes));
+    }
+
+    private CapacitySearch newCapacitySearch() {
+        return new CapacitySearch("merge_users.sh", "users", CAPACITY_START_SIZE, CAPACITY_MAX_SIZE);
+    }
+
+    private TestScenario findCapacity(CapacitySearch search) {
+        // A runner of its own, so the probes' deadline does not outlive the search
+        ScriptRunner probeRunner = new ScriptRunner(workspace);
+        if (search.getTimeBudgetMs() != Long.MAX_VALUE) {
+            probeRunner.withDeadline(search.getTimeBudgetMs());
+        }
+        capacity = search.search(size -> {
+            new DataGenerator(workspace).withSeed(CAPACITY_SEED).generateShardedDataset((int) size).writeFiles();
+            probeRunner.executeScript();
+            return new CapacitySearch.Probe(size, probeRunner.getExitCode(), probeRunner.getExecutionTimeMs(),
+                    probeRunner.getMemoryUsedBytes(), probeRunner.getDeadlineExceeded() != null);
+        });
+        return this;
+    }
+
+    public TestScenario capacityIsAtLeast(long minSize) {
+        assertNotNull(capacity, "findCapacityWithin() should run before capacity assertions");
+        assertTrue(capacity.capacity >= minSize, "Capacity should be at least " + minSize + ": " + capacity);
+        return this;
+    }
+
+    public TestScenario hasNoPerformanceRegression() {
+        PerformanceHistory.Regression regression = scriptRunner.compareWithHistory();
+        assertFalse(regression.isSignificant(),
+                "Execution time regressed: " + regression + " (history: " + scriptRunner.getHistoryFile() + ")");
+        return this;
+    }
+
     public TestScenario exitCodeIs(int expectedExitCode) {
         int actualExitCode = scriptRunner.getExitCode();
         assertEquals(expectedExitCode, actualExitCode,
@@ -160,15 +477,75 @@ public class TestScenario {
     }
 
     public TestScenario cleanupTestFiles() {
-        dataGenerator.cleanupFiles();
+        workspace.delete();
         return this;
     }
 
+    public CapacitySearch.Result getCapacity() {
+        return capacity;
+    }
+
+    public LoadRunner.Report getLoadReport() {
+        return loadReport;
+    }
+
+    public ForkProfiler.Report getForkProfile() {
+        return scriptRunner.getForkProfile();
+    }
+
+    public ScriptRunner.Throughput getThroughput() {
+        return scriptRunner.getThroughput();
+    }
+
+    public LineProfiler.Report getLineProfile() {
+        return scriptRunner.getLineProfile();
+    }
+
+    public ScriptRunner.DeadlineExceeded getDeadlineExceeded() {
+        return scriptRunner.getDeadlineExceeded();
+    }
+
     public long getExecutionTime() {
         return scriptRunner.getExecutionTimeMs();
     }
 
+    public long getReferenceExecutionTime() {
+        return userMerger.getElapsedTimeMs();
+    }
+
+    public double getReferenceBytesPerSecond() {
+        return userMerger.getBytesPerSecond();
+    }
+
+    public long getSeed() {
+        return dataGenerator.getSeed();
+    }
+
+    public String getGeneratedDataChecksum() {
+        return dataGenerator.checksum();
+    }
+
+    public boolean isDatasetCacheHit() {
+        return dataGenerator.isCacheHit();
+    }
+
     public int getUserCount() {
         return resultAnalyser.getUserCount();
     }
-}
\ No newline at end of file
+
+    public int getOutputScans() {
+        return resultAnalyser.getOutputScans();
+    }
+
+    public String getDataFile(String fileName) {
+        return workspace.dataFile(fileName);
+    }
+
+    public LatencyStatistics getLatencyStatistics() {
+        return scriptRunner.getLatencyStatistics();
+    }
+
+    public String getScalingReport() {
+        return scalingAnalyser.report();
+    }
+}
@@ -1,62 +1,82 @@
 package helpers;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
 
 public class DataGenerator {
-    private static final String DATA_DIR = Paths.get(System.getProperty("user.dir"), "data").toString();
-    private static final String USERS_TXT_FILE = Paths.get(DATA_DIR, "users.txt").toString();
-    private static final String USERS_JSON_FILE = Paths.get(DATA_DIR, "users.json").toString();
-    private static final String USERS_CSV_FILE = Paths.get(DATA_DIR, "users.csv").toString();
+    private static final String[] NAMES = { "Alice Smith", "Bob Johnson", "Carol Lee", "Dave Brown", "Eve Wilson",
+            "Frank Miller", "Grace Davis", "Henry Garcia", "Ivy Rodriguez", "Jack Martinez" };
+    private static final String[] DOMAINS = { "example.com", "test.org", "demo.net", "sample.io" };
+    private static final int MAX_ROW_LENGTH = 64;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
 
-    private final List<String> userLogins = new ArrayList<>();
+    private final DatasetCache cache = new DatasetCache();
+    private final String dataDir;
+    private final String usersTxtFile;
+    private final String usersJsonFile;
+    private final String usersCsvFile;
+    // Generated users are a pure function of their index and the seed; only explicit entries and overrides are stored
+    private final Set<String> userLogins = new LinkedHashSet<>();
     private final Map<String, String> userNames = new HashMap<>();
     private final Map<String, String> userEmails = new HashMap<>();
+    private int generatedUserCount;
+    private int incompleteUserCount;
 
-    public DataGenerator() {
+    private long seed = System.nanoTime();
+    private boolean seedFixed;
+    private boolean cacheEnabled = true;
+    private boolean cacheHit;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private DatasetSpec spec;
+
+    public DataGenerator(Workspace workspace) {
+        this.dataDir = workspace.getDataDir().toString();
+        this.usersTxtFile = workspace.dataFile("users.txt");
+        this.usersJsonFile = workspace.dataFile("users.json");
+        this.usersCsvFile = workspace.dataFile("users.csv");
         createDataDir();
     }
 
     private void createDataDir() {
-        File directory = new File(DATA_DIR);
+        File directory = new File(dataDir);
         if (!directory.exists()) {
             directory.mkdirs();
         }
     }
 
     public DataGenerator generateUsers(int count) {
+        spec = null;
         userLogins.clear();
         userNames.clear();
         userEmails.clear();
-
-        String[] names = { "Alice Smith", "Bob Johnson", "Carol Lee", "Dave Brown", "Eve Wilson",
-                "Frank Miller", "Grace Davis", "Henry Garcia", "Ivy Rodriguez", "Jack Martinez" };
-        String[] domains = { "example.com", "test.org", "demo.net", "sample.io" };
-
-        Random random = new Random();
-
-        for (int i = 0; i < count; i++) {
-            String login = "user" + (i + 1);
-            String name = names[i % names.length];
-            String email = login + "@" + domains[i % domains.length];
-
-            userLogins.add(login);
-            userNames.put(login, name);
-            userEmails.put(login, email);
-        }
+        generatedUserCount = count;
+        incompleteUserCount = 0;
         return this;
     }
 
     public DataGenerator withUser(String login) {
-        if (!userLogins.contains(login)) {
+        if (generatedIndex(login) < 0) {
             userLogins.add(login);
         }
         return this;
@@ -83,34 +103,152 @@ public class DataGenerator {
         generateUsers(userCount);
 
         // Додаємо кілька користувачів з неповними даними для тестування
-        Random random = new Random();
-        int incompleteUsers = Math.min(userCount / 10, 5);
+        incompleteUserCount = Math.min(userCount / 10, 5);
+        return this;
+    }
+
+    public DataGenerator withSeed(long seed) {
+        this.seed = seed;
+        this.seedFixed = true;
+        return this;
+    }
 
+    public DataGenerator withoutCache() {
+        this.cacheEnabled = false;
+        return this;
+    }
+
+    public DataGenerator withParallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    // The default shape: every generated user complete, plus at most five explicit incomplete ones
+    public DataGenerator generateShardedDataset(int userCount) {
+        generateDataset(new DatasetSpec().withRows(userCount));
+
+        SplittableRandom random = new SplittableRandom(seed);
+        int incompleteUsers = Math.min(userCount / 10, 5);
         for (int i = 0; i < incompleteUsers; i++) {
             String login = "incomplete" + i;
-            userLogins.add(login);
+            withUser(login);
 
             if (random.nextBoolean()) {
-                userNames.put(login, "Incomplete User " + i);
+                withUserName(login, "Incomplete User " + i);
             }
             if (random.nextBoolean()) {
-                userEmails.put(login, login + "@incomplete.com");
+                withUserEmail(login, login + "@incomplete.com");
             }
         }
+        return this;
+    }
 
+    // rows are the users; generated rows are never held in memory: they are rendered per shard while writing the files
+    public DataGenerator generateDataset(DatasetSpec spec) {
+        if (spec.hasSeed()) {
+            withSeed(spec.getSeed());
+        }
+        this.spec = spec;
+        generatedUserCount = 0;
+        incompleteUserCount = 0;
         return this;
     }
 
     public void writeFiles() {
+        List<Path> files = List.of(Paths.get(usersTxtFile), Paths.get(usersJsonFile), Paths.get(usersCsvFile));
+        cacheHit = false;
+        if (spec != null && spec.getRows() > 0) {
+            // Only a fixed seed makes the dataset reproducible, and so worth keeping between runs
+            if (seedFixed && cacheEnabled) {
+                cacheHit = cache.materialise(cacheKey(), files, this::writeShardedFiles);
+            } else {
+                writeShardedFiles();
+            }
+            return;
+        }
+
+        // The writers below truncate in place, which would corrupt a cached dataset still linked here
+        try {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to replace generated files", e);
+        }
         writeUsersTextFile();
         writeUsersJsonFile();
         writeUsersCsvFile();
     }
 
+    // Generated users come first: user1..userN, then incomplete0..incompleteK of a large dataset
+    private String generatedLogin(int index) {
+        return index < generatedUserCount ? "user" + (index + 1) : "incomplete" + (index - generatedUserCount);
+    }
+
+    private String generatedName(int index) {
+        if (index < generatedUserCount) {
+            return NAMES[index % NAMES.length];
+        }
+        int incomplete = index - generatedUserCount;
+        return incompleteness(index).nextBoolean() ? "Incomplete User " + incomplete : null;
+    }
+
+    private String generatedEmail(int index, String login) {
+        if (index < generatedUserCount) {
+            return login + "@" + DOMAINS[index % DOMAINS.length];
+        }
+        SplittableRandom random = incompleteness(index);
+        random.nextBoolean();
+        return random.nextBoolean() ? login + "@incomplete.com" : null;
+    }
+
+    // Which fields an incomplete user has depends only on the seed and its index, not on generation order
+    private SplittableRandom incompleteness(int index) {
+        return ShardedFileWriter.shardRandom(seed, index);
+    }
+
+    // user1..userN, whether held as a count or rendered per shard from the spec
+    private long generatedUsers() {
+        return spec != null ? spec.getRows() : generatedUserCount;
+    }
+
+    // The index of a generated user with this login, or -1, so explicit entries can override generated ones in O(1)
+    private int generatedIndex(String login) {
+        String prefix = login.startsWith("user") ? "user" : login.startsWith("incomplete") ? "incomplete" : null;
+        if (prefix == null || login.length() == prefix.length() || login.length() > prefix.length() + 9
+                || login.charAt(prefix.length()) == '0' && login.length() > prefix.length() + 1) {
+            return -1;
+        }
+        int number = 0;
+        for (int i = prefix.length(); i < login.length(); i++) {
+            char digit = login.charAt(i);
+            if (digit < '0' || digit > '9') {
+                return -1;
+            }
+            number = number * 10 + (digit - '0');
+        }
+        if (prefix.equals("user")) {
+            return number >= 1 && number <= generatedUsers() ? number - 1 : -1;
+        }
+        return number < incompleteUserCount ? generatedUserCount + number : -1;
+    }
+
+    // Explicit entries are keyed by content; parallelism is keyed so the reproducibility checks still generate twice
+    private String cacheKey() {
+        return DatasetCache.key(List.of(DataGenerator.class, ShardedFileWriter.class, DatasetSpec.class), "sharded",
+                spec, seed, parallelism, userLogins, userNames, userEmails);
+    }
+
+    // The three writers below render generated users on the fly, so memory does not grow with the user count
     private void writeUsersTextFile() {
-        try (FileWriter writer = new FileWriter(USERS_TXT_FILE)) {
+        try (BufferedWriter writer = newWriter(usersTxtFile)) {
+            for (int i = 0; i < generatedUserCount + incompleteUserCount; i++) {
+                writer.write(generatedLogin(i));
+                writer.write('\n');
+            }
             for (String login : userLogins) {
-                writer.write(login + "\n");
+                writer.write(login);
+                writer.write('\n');
             }
         } catch (IOException e) {
             throw new RuntimeException("Failed to write users.txt file", e);
@@ -118,45 +256,232 @@ public class DataGenerator {
     }
 
     private void writeUsersJsonFile() {
-        try {
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.writeValue(new File(USERS_JSON_FILE), userNames);
+        try (JsonGenerator json = JSON_FACTORY.createGenerator(newWriter(usersJsonFile))) {
+            json.writeStartObject();
+            for (int i = 0; i < generatedUserCount + incompleteUserCount; i++) {
+                String login = generatedLogin(i);
+                String name = userNames.containsKey(login) ? userNames.get(login) : generatedName(i);
+                if (name != null || userNames.containsKey(login)) {
+                    json.writeStringField(login, name);
+                }
+            }
+            for (Map.Entry<String, String> entry : userNames.entrySet()) {
+                if (generatedIndex(entry.getKey()) < 0) {
+                    json.writeStringField(entry.getKey(), entry.getValue());
+                }
+            }
+            json.writeEndObject();
         } catch (IOException e) {
             throw new RuntimeException("Failed to write users.json file", e);
         }
     }
 
     private void writeUsersCsvFile() {
-        try (FileWriter writer = new FileWriter(USERS_CSV_FILE)) {
+        try (BufferedWriter writer = newWriter(usersCsvFile)) {
             writer.write("login,email\n");
+            for (int i = 0; i < generatedUserCount + incompleteUserCount; i++) {
+                String login = generatedLogin(i);
+                String email = userEmails.containsKey(login) ? userEmails.get(login) : generatedEmail(i, login);
+                if (email != null || userEmails.containsKey(login)) {
+                    writer.write(login + "," + email + "\n");
+                }
+            }
             for (Map.Entry<String, String> entry : userEmails.entrySet()) {
-                writer.write(entry.getKey() + "," + entry.getValue() + "\n");
+                if (generatedIndex(entry.getKey()) < 0) {
+                    writer.write(entry.getKey() + "," + entry.getValue() + "\n");
+                }
             }
         } catch (IOException e) {
             throw new RuntimeException("Failed to write users.csv file", e);
         }
     }
 
+    private static BufferedWriter newWriter(String file) throws IOException {
+        return new BufferedWriter(Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+    }
+
+    // 0 for a complete user, otherwise 1 without a name or 2 without an email; every file draws the same answer
+    private static int missingField(long seed, long row, double nullRate) {
+        if (nullRate == 0) {
+            return 0;
+        }
+        long bits = ShardedFileWriter.mix(seed, row);
+        return (bits >>> 11) * 0x1.0p-53 < nullRate ? 1 + (int) (bits & 1) : 0;
+    }
+
+    private void writeShardedFiles() {
+        long shardedUserCount = spec.getRows();
+        double nullRate = spec.getNullRate();
+
+        // Explicit entries for generated logins replace their rows in place, as they do in memory; the rest follow
+        StringBuilder explicitLogins = new StringBuilder();
+        for (String login : userLogins) {
+            if (generatedIndex(login) < 0) {
+                explicitLogins.append(login).append('\n');
+            }
+        }
+
+        Map<Long, byte[]> nameOverrides = new HashMap<>();
+        StringBuilder explicitNames = new StringBuilder();
+        try {
+            ObjectMapper mapper = new ObjectMapper();
+            for (Map.Entry<String, String> entry : userNames.entrySet()) {
+                String field = mapper.writeValueAsString(entry.getKey()) + ":"
+                        + mapper.writeValueAsString(entry.getValue());
+                int index = generatedIndex(entry.getKey());
+                if (index >= 0) {
+                    nameOverrides.put((long) index, field.getBytes(StandardCharsets.UTF_8));
+                } else {
+                    explicitNames.append(',').append(field);
+                }
+            }
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to write users.json file", e);
+        }
+
+        Map<Long, byte[]> emailOverrides = new HashMap<>();
+        StringBuilder explicitEmails = new StringBuilder();
+        for (Map.Entry<String, String> entry : userEmails.entrySet()) {
+            String row = entry.getKey() + "," + entry.getValue() + "\n";
+            int index = generatedIndex(entry.getKey());
+            if (index >= 0) {
+                emailOverrides.put((long) index, row.getBytes(StandardCharsets.UTF_8));
+            } else {
+                explicitEmails.append(row);
+            }
+        }
+
+        // An override can be longer than any generated row, and the shard buffers are sized by the longest row
+        int maxRowLength = MAX_ROW_LENGTH;
+        for (byte[] row : nameOverrides.values()) {
+            maxRowLength = Math.max(maxRowLength, row.length + 1);
+        }
+        for (byte[] row : emailOverrides.values()) {
+            maxRowLength = Math.max(maxRowLength, row.length);
+        }
+        ShardedFileWriter writer = new ShardedFileWriter(parallelism, maxRowLength);
+
+        writer.write(Paths.get(usersTxtFile), "", shardedUserCount, seed, (row, random, buffer) -> {
+            ShardedFileWriter.putAscii(buffer, "user");
+            ShardedFileWriter.putNumber(buffer, row + 1);
+            buffer.put((byte) '\n');
+        }, explicitLogins.toString());
+
+        writer.write(Paths.get(usersJsonFile), "{", shardedUserCount, seed, (row, random, buffer) -> {
+            if (row > 0) {
+                buffer.put((byte) ',');
+            }
+            byte[] override = nameOverrides.isEmpty() ? null : nameOverrides.get(row);
+            if (override != null) {
+                buffer.put(override);
+                return;
+            }
+            ShardedFileWriter.putAscii(buffer, "\"user");
+            ShardedFileWriter.putNumber(buffer, row + 1);
+            if (missingField(seed, row, nullRate) == 1) {
+                // jq reads a null name as no name at all
+                ShardedFileWriter.putAscii(buffer, "\":null");
+                return;
+            }
+            ShardedFileWriter.putAscii(buffer, "\":\"");
+            ShardedFileWriter.putAscii(buffer, NAMES[(int) (row % NAMES.length)]);
+            buffer.put((byte) '"');
+        }, explicitNames.append('}').toString());
+
+        writer.write(Paths.get(usersCsvFile), "login,email\n", shardedUserCount, seed, (row, random, buffer) -> {
+            byte[] override = emailOverrides.isEmpty() ? null : emailOverrides.get(row);
+            if (override != null) {
+                buffer.put(override);
+                return;
+            }
+            if (missingField(seed, row, nullRate) == 2) {
+                return;
+            }
+            ShardedFileWriter.putAscii(buffer, "user");
+            ShardedFileWriter.putNumber(buffer, row + 1);
+            buffer.put((byte) ',');
+            ShardedFileWriter.putAscii(buffer, "user");
+            ShardedFileWriter.putNumber(buffer, row + 1);
+            buffer.put((byte) '@');
+            ShardedFileWriter.putAscii(buffer, DOMAINS[(int) (row % DOMAINS.length)]);
+            buffer.put((byte) '\n');
+        }, explicitEmails.toString());
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public boolean hasFixedSeed() {
+        return seedFixed;
+    }
+
+    public boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    public String checksum() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1 << 16];
+            for (String file : new String[] { usersTxtFile, usersJsonFile, usersCsvFile }) {
+                try (InputStream input = Files.newInputStream(Paths.get(file))) {
+                    int read;
+                    while ((read = input.read(buffer)) != -1) {
+                        digest.update(buffer, 0, read);
+                    }
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to checksum generated files", e);
+        }
+    }
+
     public void cleanupFiles() {
-        new File(USERS_TXT_FILE).delete();
-        new File(USERS_JSON_FILE).delete();
-        new File(USERS_CSV_FILE).delete();
-        new File(Paths.get(DATA_DIR, "full_users.csv").toString()).delete();
+        new File(usersTxtFile).delete();
+        new File(usersJsonFile).delete();
+        new File(usersCsvFile).delete();
+        new File(Paths.get(dataDir, "full_users.csv").toString()).delete();
     }
 
     public int getUserCount() {
-        return userLogins.size();
+        long explicitUsers = userLogins.stream().filter(login -> generatedIndex(login) < 0).count();
+        return (int) (generatedUsers() + incompleteUserCount + explicitUsers);
     }
 
+    // The accessors below materialise generated users too, so they are only meant for small datasets
     public List<String> getUserLogins() {
-        return new ArrayList<>(userLogins);
+        List<String> logins = new ArrayList<>();
+        for (int i = 0; i < generatedUserCount + incompleteUserCount; i++) {
+            logins.add(generatedLogin(i));
+        }
+        logins.addAll(userLogins);
+        return logins;
     }
 
     public Map<String, String> getUserNames() {
-        return new HashMap<>(userNames);
+        Map<String, String> names = new HashMap<>();
+        for (int i = 0; i < generatedUserCount + incompleteUserCount; i++) {
+            String name = generatedName(i);
+            if (name != null) {
+                names.put(generatedLogin(i), name);
+            }
+        }
+        names.putAll(userNames);
+        return names;
     }
 
     public Map<String, String> getUserEmails() {
-        return new HashMap<>(userEmails);
+        Map<String, String> emails = new HashMap<>();
+        for (int i = 0; i < generatedUserCount + incompleteUserCount; i++) {
+            String login = generatedLogin(i);
+            String email = generatedEmail(i, login);
+            if (email != null) {
+                emails.put(login, email);
+            }
+        }
+        emails.putAll(userEmails);
+        return emails;
     }
 }
\ No newline at end of file
@@ -0,0 +1,274 @@
+package helpers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+// Declarative shape of a generated dataset; each module's DataGenerator compiles it into its row writers
+public class DatasetSpec {
+    // Amounts are drawn as whole cents: up to this they stay exact in a double, far inside a long's range
+    private static final long MAX_AMOUNT = 10_000_000_000_000L;
+    private static final Set<String> PROPERTY_NAMES = Set.of("rows", "keys", "key.distribution", "key.skew",
+            "categories", "amount.min", "amount.max", "dates.from", "dates.days", "null.rate", "banned.rate", "seed");
+
+    public enum Distribution {
+        UNIFORM,
+        ZIPF
+    }
+
+    public interface KeySampler {
+        int next(SplittableRandom random);
+    }
+
+    // rows: transactions (calculate_average_app), login records (check_active_users) or users (merge_users)
+    private long rows;
+    // keys: distinct users the rows are spread over; 0 gives every row its own key
+    private int keys;
+    private Distribution keyDistribution = Distribution.UNIFORM;
+    // Zipf exponent: 0 is uniform, around 1 is typical of real traffic, above 1 concentrates rows on a few hot keys
+    private double keySkew = 1;
+    private int categories = 3;
+    private double minAmount = 100;
+    private double maxAmount = 2000;
+    // A missing start date means the last `dateDays` days up to and including today
+    private LocalDate firstDate;
+    private int dateDays = 60;
+    // nullRate: users without a name or email (merge_users) or that never log in (check_active_users)
+    private double nullRate;
+    private double bannedRate;
+    private Long seed;
+
+    public static DatasetSpec fromResource(String resource) {
+        try (InputStream input = DatasetSpec.class.getClassLoader().getResourceAsStream(resource)) {
+            if (input == null) {
+                throw new IllegalArgumentException("Dataset spec not found on the classpath: " + resource);
+            }
+            Properties properties = new Properties();
+            properties.load(input);
+            return new DatasetSpec().withProperties(properties);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read dataset spec " + resource, e);
+        }
+    }
+
+    // Overlays every property that is set; unset ones keep their current value
+    public DatasetSpec withProperties(Properties properties) {
+        for (String name : properties.stringPropertyNames()) {
+            if (!PROPERTY_NAMES.contains(name)) {
+                throw new IllegalArgumentException("Unknown dataset spec property: " + name);
+            }
+        }
+        try {
+            String value;
+            if ((value = property(properties, "rows")) != null) {
+                withRows(Long.parseLong(value));
+            }
+            if ((value = property(properties, "keys")) != null) {
+                withKeys(Integer.parseInt(value));
+            }
+            if ((value = property(properties, "key.distribution")) != null) {
+                withKeyDistribution(Distribution.valueOf(value.toUpperCase()));
+            }
+            if ((value = property(properties, "key.skew")) != null) {
+                withKeySkew(Double.parseDouble(value));
+            }
+            if ((value = property(properties, "categories")) != null) {
+                withCategories(Integer.parseInt(value));
+            }
+            String min = property(properties, "amount.min");
+            String max = property(properties, "amount.max");
+            if (min != null || max != null) {
+                withAmounts(min != null ? Double.parseDouble(min) : minAmount,
+                        max != null ? Double.parseDouble(max) : maxAmount);
+            }
+            String from = property(properties, "dates.from");
+            String days = property(properties, "dates.days");
+            if (from != null || days != null) {
+                withDates(from == null ? firstDate : from.isEmpty() ? null : LocalDate.parse(from),
+                        days != null ? Integer.parseInt(days) : dateDays);
+            }
+            if ((value = property(properties, "null.rate")) != null) {
+                withNullRate(Double.parseDouble(value));
+            }
+            if ((value = property(properties, "banned.rate")) != null) {
+                withBannedRate(Double.parseDouble(value));
+            }
+            if ((value = property(properties, "seed")) != null) {
+                withSeed(Long.parseLong(value));
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid dataset spec: " + e.getMessage(), e);
+        }
+        return this;
+    }
+
+    public DatasetSpec withRows(long rows) {
+        requireAtLeast("rows", rows, 0);
+        this.rows = rows;
+        return this;
+    }
+
+    public DatasetSpec withKeys(int keys) {
+        requireAtLeast("keys", keys, 0);
+        this.keys = keys;
+        return this;
+    }
+
+    public DatasetSpec withKeyDistribution(Distribution keyDistribution) {
+        this.keyDistribution = keyDistribution;
+        return this;
+    }
+
+    public DatasetSpec withKeySkew(double keySkew) {
+        if (!(keySkew >= 0)) {
+            throw new IllegalArgumentException("key.skew must be at least 0, got " + keySkew);
+        }
+        this.keySkew = keySkew;
+        return this;
+    }
+
+    public DatasetSpec withZipfKeys(double exponent) {
+        return withKeyDistribution(Distribution.ZIPF).withKeySkew(exponent);
+    }
+
+    public DatasetSpec withCategories(int categories) {
+        requireAtLeast("categories", categories, 1);
+        this.categories = categories;
+        return this;
+    }
+
+    public DatasetSpec withAmounts(double minAmount, double maxAmount) {
+        if (!(minAmount >= 0 && maxAmount >= minAmount && maxAmount <= MAX_AMOUNT)) {
+            throw new IllegalArgumentException("Amounts must satisfy 0 <= min <= max <= " + MAX_AMOUNT + ", got "
+                    + minAmount + ".." + maxAmount);
+        }
+        this.minAmount = minAmount;
+        this.maxAmount = maxAmount;
+        return this;
+    }
+
+    public DatasetSpec withDates(LocalDate firstDate, int days) {
+        requireAtLeast("dates.days", days, 1);
+        this.firstDate = firstDate;
+        this.dateDays = days;
+        return this;
+    }
+
+    public DatasetSpec withRecentDates(int days) {
+        return withDates(null, days);
+    }
+
+    public DatasetSpec withNullRate(double nullRate) {
+        requireRate("null.rate", nullRate);
+        this.nullRate = nullRate;
+        return this;
+    }
+
+    public DatasetSpec withBannedRate(double bannedRate) {
+        requireRate("banned.rate", bannedRate);
+        this.bannedRate = bannedRate;
+        return this;
+    }
+
+    public DatasetSpec withSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public int getKeys() {
+        return keys > 0 ? keys : (int) Math.min(Integer.MAX_VALUE, Math.max(1, rows));
+    }
+
+    public Distribution getKeyDistribution() {
+        return keyDistribution;
+    }
+
+    public double getKeySkew() {
+        return keySkew;
+    }
+
+    public int getCategories() {
+        return categories;
+    }
+
+    public double getMinAmount() {
+        return minAmount;
+    }
+
+    public double getMaxAmount() {
+        return maxAmount;
+    }
+
+    public double getNullRate() {
+        return nullRate;
+    }
+
+    public double getBannedRate() {
+        return bannedRate;
+    }
+
+    public boolean hasSeed() {
+        return seed != null;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    // Each date is rendered once here, so row writers only copy bytes
+    public byte[][] renderDates() {
+        LocalDate first = getFirstDate();
+        byte[][] dates = new byte[dateDays][];
+        for (int i = 0; i < dateDays; i++) {
+            dates[i] = first.plusDays(i).toString().getBytes(StandardCharsets.US_ASCII);
+        }
+        return dates;
+    }
+
+    // Samplers are read-only once built, so one instance can be shared by every shard
+    public KeySampler keySampler(int keyCount) {
+        if (keyDistribution == Distribution.ZIPF) {
+            return AliasSampler.zipf(keyCount, keySkew);
+        }
+        return random -> random.nextInt(keyCount);
+    }
+
+    private LocalDate getFirstDate() {
+        return firstDate != null ? firstDate : LocalDate.now().minusDays(dateDays - 1);
+    }
+
+    // Complete and with relative dates resolved, so it can be part of a dataset cache key
+    @Override
+    public String toString() {
+        return "rows=" + rows + ",keys=" + keys + ",key.distribution=" + keyDistribution
+                + (keyDistribution == Distribution.ZIPF ? ",key.skew=" + keySkew : "") + ",categories=" + categories
+                + ",amount.min=" + minAmount + ",amount.max=" + maxAmount + ",dates.from=" + getFirstDate()
+                + ",dates.days=" + dateDays + ",null.rate=" + nullRate + ",banned.rate=" + bannedRate;
+    }
+
+    private static String property(Properties properties, String name) {
+        String value = properties.getProperty(name);
+        return value == null ? null : value.trim();
+    }
+
+    private static void requireAtLeast(String name, long value, long min) {
+        if (value < min) {
+            throw new IllegalArgumentException(name + " must be at least " + min + ", got " + value);
+        }
+    }
+
+    private static void requireRate(String name, double value) {
+        if (!(value >= 0 && value <= 1)) {
+            throw new IllegalArgumentException(name + " must be between 0 and 1, got " + value);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package helpers;
+
+import java.util.Arrays;
+
+// Timings of repeated script runs; samples are kept as-is because runs number in the tens, so percentiles are exact
+public class LatencyStatistics {
+    // Two-sided 95% Student t quantiles for 1..30 degrees of freedom, normal approximation beyond
+    private static final double[] T_95 = { 12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086, 2.080, 2.074, 2.069, 2.064, 2.060,
+            2.056, 2.052, 2.048, 2.045, 2.042 };
+    private static final double Z_95 = 1.960;
+
+    private long[] samples = new long[16];
+    private int count;
+    private boolean sorted = true;
+
+    public void record(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+        sorted = false;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    // Nearest-rank percentile, so the reported value is always one that was actually observed
+    public long percentileNanos(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        sortIfNeeded();
+        int rank = (int) Math.ceil(percentile / 100 * count);
+        return samples[Math.min(count, Math.max(rank, 1)) - 1];
+    }
+
+    public double percentileMs(double percentile) {
+        return percentileNanos(percentile) / 1_000_000.0;
+    }
+
+    public double getMinMs() {
+        return percentileMs(0);
+    }
+
+    public double getMaxMs() {
+        return percentileMs(100);
+    }
+
+    public double getMeanMs() {
+        if (count == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += samples[i];
+        }
+        return sum / count / 1_000_000.0;
+    }
+
+    public double getStandardDeviationMs() {
+        if (count < 2) {
+            return 0;
+        }
+        double mean = getMeanMs() * 1_000_000.0;
+        double squares = 0;
+        for (int i = 0; i < count; i++) {
+            squares += (samples[i] - mean) * (samples[i] - mean);
+        }
+        return Math.sqrt(squares / (count - 1)) / 1_000_000.0;
+    }
+
+    // Half-width of the 95% confidence interval of the mean
+    public double getConfidenceIntervalMs() {
+        if (count < 2) {
+            return Double.POSITIVE_INFINITY;
+        }
+        int degreesOfFreedom = count - 1;
+        double t = degreesOfFreedom <= T_95.length ? T_95[degreesOfFreedom - 1] : Z_95;
+        return t * getStandardDeviationMs() / Math.sqrt(count);
+    }
+
+    public double getRelativeConfidenceInterval() {
+        double mean = getMeanMs();
+        return mean == 0 ? Double.POSITIVE_INFINITY : getConfidenceIntervalMs() / mean;
+    }
+
+    private void sortIfNeeded() {
+        if (!sorted) {
+            Arrays.sort(samples, 0, count);
+            sorted = true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d, p50=%.1fms, p90=%.1fms, p99=%.1fms, max=%.1fms, mean=%.1fms ± %.1fms (95%% CI)",
+                count, percentileMs(50), percentileMs(90), percentileMs(99), getMaxMs(), getMeanMs(),
+                getConfidenceIntervalMs());
+    }
+}
@@ -0,0 +1,258 @@
+package helpers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Times every line of a bash script from its xtrace, read through a FIFO as the script runs
+public class LineProfiler {
+    // Sourced by bash before the script: the trace goes to the FIFO, stamped with the time and the line it is for
+    private static final String STARTUP_FILE = String.join("\n",
+            "exec {BASH_XTRACEFD}>\"$XTRACE_FIFO\"",
+            "unset BASH_ENV XTRACE_FIFO",
+            "PS4='+${EPOCHREALTIME} ${LINENO} '",
+            "set -x",
+            "");
+    // Enough for the "+" nesting marks, the time and the line number; the traced command itself is skipped
+    private static final int PREFIX_LIMIT = 64;
+    private static final long READER_WAIT_MS = 1000;
+
+    public static class Line {
+        public final int number;
+        public final long count;
+        public final long timeNanos;
+        public final String text;
+
+        Line(int number, long count, long timeNanos, String text) {
+            this.number = number;
+            this.count = count;
+            this.timeNanos = timeNanos;
+            this.text = text;
+        }
+    }
+
+    public static class Report {
+        public final long records;
+        public final long tracedNanos;
+        // In script order
+        public final List<Line> lines;
+
+        Report(long records, List<Line> lines) {
+            this.records = records;
+            this.lines = lines;
+            this.tracedNanos = lines.stream().mapToLong(line -> line.timeNanos).sum();
+        }
+
+        public Line getLine(int number) {
+            return lines.stream().filter(line -> line.number == number).findFirst()
+                    .orElse(new Line(number, 0, 0, ""));
+        }
+
+        public List<Line> getHottest(int limit) {
+            return lines.stream().sorted(Comparator.comparingLong((Line line) -> line.timeNanos).reversed())
+                    .limit(limit).toList();
+        }
+
+        public double getShare(int number) {
+            return tracedNanos == 0 ? 0 : (double) getLine(number).timeNanos / tracedNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder(String.format("%d trace records over %.1fms; hottest lines:",
+                    records, tracedNanos / 1_000_000.0));
+            for (Line line : getHottest(10)) {
+                String text = line.text.trim();
+                report.append(String.format("%n  %4d %8d runs %10.1fms %5.1f%%  %s", line.number, line.count,
+                        line.timeNanos / 1_000_000.0, getShare(line.number) * 100,
+                        text.length() > 60 ? text.substring(0, 57) + "..." : text));
+            }
+            return report.toString();
+        }
+    }
+
+    private final Path fifo;
+    private final Path startupFile;
+    // Line number -> {records, microseconds until the next record}
+    private final Map<Integer, long[]> lines = new TreeMap<>();
+    private long records;
+    private Thread thread;
+    private volatile IOException failure;
+
+    public LineProfiler(Path directory) {
+        fifo = directory.resolve("xtrace-" + System.nanoTime() + ".fifo");
+        startupFile = directory.resolve(fifo.getFileName() + ".rc");
+        try {
+            Files.writeString(startupFile, STARTUP_FILE);
+            Process mkfifo = new ProcessBuilder("mkfifo", fifo.toString()).redirectErrorStream(true).start();
+            if (mkfifo.waitFor() != 0) {
+                throw new IllegalStateException("mkfifo failed: "
+                        + new String(mkfifo.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to set up the xtrace FIFO in " + directory, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while creating the xtrace FIFO", e);
+        }
+    }
+
+    // PS4 is not taken from the environment of a shell running as root, so it is set by the startup file instead
+    public void configure(ProcessBuilder processBuilder) {
+        processBuilder.environment().put("BASH_ENV", startupFile.toString());
+        processBuilder.environment().put("XTRACE_FIFO", fifo.toString());
+    }
+
+    // The reader is in place before the script starts, as neither end of a FIFO opens without the other
+    public LineProfiler start() {
+        thread = new Thread(this::read, "xtrace-reader");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    public void stop() throws InterruptedException {
+        if (thread == null) {
+            return;
+        }
+        // A script that died before opening its end leaves the reader waiting; a read-write open never blocks
+        // on Linux, and closing it again hands the reader its end of file
+        try {
+            new RandomAccessFile(fifo.toFile(), "rw").close();
+        } catch (IOException e) {
+            // The reader is gone already
+        }
+        // A background process the script left behind could keep the FIFO open indefinitely
+        thread.join(READER_WAIT_MS);
+        thread = null;
+        try {
+            Files.deleteIfExists(fifo);
+            Files.deleteIfExists(startupFile);
+        } catch (IOException e) {
+            // The workspace goes with them
+        }
+    }
+
+    public Report report(Path script) {
+        List<String> source;
+        try {
+            source = Files.readAllLines(script, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + script, e);
+        }
+        if (failure != null) {
+            throw new RuntimeException("Failed to read the xtrace of " + script, failure);
+        }
+        List<Line> report = new ArrayList<>();
+        synchronized (lines) {
+            lines.forEach((number, totals) -> report.add(new Line(number, totals[0], totals[1] * 1000,
+                    number >= 1 && number <= source.size() ? source.get(number - 1) : "")));
+            return new Report(records, report);
+        }
+    }
+
+    // Only each record's prefix is kept, so a command tracing megabytes of expanded variables costs no memory
+    private void read() {
+        byte[] prefix = new byte[PREFIX_LIMIT];
+        int prefixLength = 0;
+        byte[] buffer = new byte[1 << 16];
+        int previousLine = -1;
+        long previousMicros = 0;
+        try (InputStream input = Files.newInputStream(fifo)) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] != '\n') {
+                        if (prefixLength < PREFIX_LIMIT) {
+                            prefix[prefixLength++] = buffer[i];
+                        }
+                        continue;
+                    }
+                    long[] record = parse(prefix, prefixLength);
+                    prefixLength = 0;
+                    // Lines without a stamp continue a multi-line command
+                    if (record == null) {
+                        continue;
+                    }
+                    synchronized (lines) {
+                        // A line's cost is the time until the next record, whichever process wrote it
+                        if (previousLine >= 0) {
+                            lines.get(previousLine)[1] += Math.max(0, record[0] - previousMicros);
+                        }
+                        lines.computeIfAbsent((int) record[1], number -> new long[2])[0]++;
+                        records++;
+                    }
+                    previousLine = (int) record[1];
+                    previousMicros = record[0];
+                }
+            }
+            // The trace ends when the script and its children exit, which is what the last line waited for
+            if (previousLine >= 0) {
+                Instant now = Instant.now();
+                long nowMicros = now.getEpochSecond() * 1_000_000 + now.getNano() / 1000;
+                synchronized (lines) {
+                    lines.get(previousLine)[1] += Math.max(0, nowMicros - previousMicros);
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    // "+[+...]<seconds>.<microseconds> <line> " -> {epoch microseconds, line}; null for anything else
+    private static long[] parse(byte[] prefix, int length) {
+        int i = 0;
+        while (i < length && prefix[i] == '+') {
+            i++;
+        }
+        if (i == 0) {
+            return null;
+        }
+        long seconds = 0;
+        int start = i;
+        while (i < length && isDigit(prefix[i])) {
+            seconds = seconds * 10 + (prefix[i++] - '0');
+        }
+        // EPOCHREALTIME follows the locale's decimal separator
+        if (i == start || i >= length || (prefix[i] != '.' && prefix[i] != ',')) {
+            return null;
+        }
+        i++;
+        long micros = 0;
+        int digits = 0;
+        while (i < length && isDigit(prefix[i])) {
+            if (digits++ < 6) {
+                micros = micros * 10 + (prefix[i] - '0');
+            }
+            i++;
+        }
+        for (; digits < 6; digits++) {
+            micros *= 10;
+        }
+        if (i >= length || prefix[i++] != ' ') {
+            return null;
+        }
+        long line = 0;
+        start = i;
+        while (i < length && isDigit(prefix[i])) {
+            line = line * 10 + (prefix[i++] - '0');
+        }
+        if (i == start || line > Integer.MAX_VALUE || (i < length && prefix[i] != ' ')) {
+            return null;
+        }
+        return new long[] {seconds * 1_000_000 + micros, line};
+    }
+
+    private static boolean isDigit(byte value) {
+        return value >= '0' && value <= '9';
+    }
+}
@@ -0,0 +1,149 @@
+package helpers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Follows the script and every process it forks, summing their resident memory and CPU time
+public class ProcessSampler {
+    private static final Path PROC = Paths.get("/proc");
+    // USER_HZ, the unit of utime/stime in /proc/<pid>/stat, is 100 on every mainstream Linux build
+    private static final long CLOCK_TICKS_PER_SECOND = 100;
+
+    public static class Sample {
+        public final long elapsedMs;
+        public final long rssBytes;
+        public final int processCount;
+
+        Sample(long elapsedMs, long rssBytes, int processCount) {
+            this.elapsedMs = elapsedMs;
+            this.rssBytes = rssBytes;
+            this.processCount = processCount;
+        }
+    }
+
+    private final long intervalMs;
+    private final List<Sample> samples = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean running;
+    private volatile long peakRssBytes;
+    private volatile long cpuTimeNanos;
+    private Thread thread;
+    private ProcessHandle root;
+    private long startTime;
+
+    public ProcessSampler(long intervalMs) {
+        this.intervalMs = intervalMs;
+    }
+
+    public ProcessSampler start(Process process) {
+        root = process.toHandle();
+        startTime = System.nanoTime();
+        running = true;
+
+        thread = new Thread(() -> {
+            while (running && root.isAlive()) {
+                sample(root, (System.nanoTime() - startTime) / 1_000_000);
+                try {
+                    Thread.sleep(intervalMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "process-sampler");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    public void stop() throws InterruptedException {
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        thread.interrupt();
+        thread.join();
+        thread = null;
+        // A tree stopped before it exits, such as one about to be killed, gets a last look at what it has used
+        if (root.isAlive()) {
+            sample(root, (System.nanoTime() - startTime) / 1_000_000);
+        }
+    }
+
+    private void sample(ProcessHandle root, long elapsedMs) {
+        List<ProcessHandle> tree = Stream.concat(Stream.of(root), root.descendants()).collect(Collectors.toList());
+
+        long rssBytes = 0;
+        long cpuNanos = 0;
+        for (ProcessHandle handle : tree) {
+            if (Files.isDirectory(PROC)) {
+                rssBytes += readRssBytes(handle.pid());
+                // cutime/cstime hold already reaped children, so each finished process is counted exactly once
+                cpuNanos += readCpuTicks(handle.pid()) * (1_000_000_000L / CLOCK_TICKS_PER_SECOND);
+            } else {
+                cpuNanos += handle.info().totalCpuDuration().map(Duration::toNanos).orElse(0L);
+            }
+        }
+
+        samples.add(new Sample(elapsedMs, rssBytes, tree.size()));
+        peakRssBytes = Math.max(peakRssBytes, rssBytes);
+        cpuTimeNanos = Math.max(cpuTimeNanos, cpuNanos);
+    }
+
+    private static long readRssBytes(long pid) {
+        try {
+            for (String line : Files.readAllLines(PROC.resolve(pid + "/status"), StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Process exited between listing and reading
+        }
+        return 0;
+    }
+
+    private static long readCpuTicks(long pid) {
+        try {
+            String stat = Files.readString(PROC.resolve(pid + "/stat"), StandardCharsets.US_ASCII);
+            // Fields after the command name: state(3) ... utime(14) stime(15) cutime(16) cstime(17)
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return Long.parseLong(fields[11]) + Long.parseLong(fields[12])
+                    + Long.parseLong(fields[13]) + Long.parseLong(fields[14]);
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    // Everything this JVM's reaped children used, theirs reaped in turn included; -1 without /proc
+    public static long reapedChildrenCpuTimeMs() {
+        try {
+            String stat = Files.readString(PROC.resolve("self/stat"), StandardCharsets.US_ASCII);
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return (Long.parseLong(fields[13]) + Long.parseLong(fields[14])) * 1000 / CLOCK_TICKS_PER_SECOND;
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    public long getPeakRssBytes() {
+        return peakRssBytes;
+    }
+
+    public long getCpuTimeMs() {
+        return cpuTimeNanos / 1_000_000;
+    }
+
+    public List<Sample> getSamples() {
+        synchronized (samples) {
+            return new ArrayList<>(samples);
+        }
+    }
+}
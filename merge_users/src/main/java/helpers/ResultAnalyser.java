@@ -8,22 +8,50 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
-import java.util.Optional;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
-import static org.junit.jupiter.api.Assertions.fail;
 
 public class ResultAnalyser {
-    private static final String RESULT_FILE = Paths.get(System.getProperty("user.dir"), "data", "full_users.csv")
-            .toString();
+    private final String resultFile;
+    private final Path workDirectory;
     private List<UserRecord> records = new ArrayList<>();
+    private final List<Check> pendingChecks = new ArrayList<>();
+    private int outputScans;
+    private boolean inOnePass;
+
+    // An output assertion: it sees the header and every line of one scan, which it may share, and may fail at any point
+    private abstract static class Check {
+        private Throwable failure;
+
+        void header(String headerLine) {
+        }
+
+        void line(int lineNumber, String line) {
+        }
+
+        void record(UserRecord record) {
+        }
+
+        void finish() {
+        }
+
+        void apply(Runnable step) {
+            try {
+                step.run();
+            } catch (AssertionError | RuntimeException e) {
+                failure = e;
+            }
+        }
+    }
 
     public static class UserRecord {
         public final String login;
@@ -59,138 +87,228 @@ public class ResultAnalyser {
         }
     }
 
+    public ResultAnalyser(Workspace workspace) {
+        this.resultFile = workspace.dataFile("full_users.csv");
+        this.workDirectory = workspace.getRoot();
+    }
+
     public ResultAnalyser containsUser(String login) {
-        loadRecordsIfNeeded();
-        boolean found = records.stream().anyMatch(record -> record.login.equals(login));
-        assertTrue(found, "User " + login + " should be in merged users");
-        return this;
+        return check(new Check() {
+            private boolean found;
+
+            @Override
+            void record(UserRecord record) {
+                found |= record.login.equals(login);
+            }
+
+            @Override
+            void finish() {
+                assertTrue(found, "User " + login + " should be in merged users");
+            }
+        });
     }
 
     public ResultAnalyser doesNotContainUser(String login) {
-        loadRecordsIfNeeded();
-        boolean found = records.stream().anyMatch(record -> record.login.equals(login));
-        assertFalse(found, "User " + login + " should NOT be in merged users");
-        return this;
+        return check(new Check() {
+            @Override
+            void record(UserRecord record) {
+                assertFalse(record.login.equals(login), "User " + login + " should NOT be in merged users");
+            }
+        });
     }
 
     public ResultAnalyser containsUserWithData(String login, String name, String email) {
-        loadRecordsIfNeeded();
-        Optional<UserRecord> userRecord = records.stream()
-                .filter(record -> record.login.equals(login))
-                .findFirst();
-
-        assertTrue(userRecord.isPresent(), "User " + login + " should be in merged users");
-        UserRecord record = userRecord.get();
-        assertEquals(name, record.name, "User " + login + " should have name " + name);
-        assertEquals(email, record.email, "User " + login + " should have email " + email);
-        return this;
+        return check(new Check() {
+            private UserRecord found;
+
+            @Override
+            void record(UserRecord record) {
+                if (found == null && record.login.equals(login)) {
+                    found = record;
+                }
+            }
+
+            @Override
+            void finish() {
+                assertTrue(found != null, "User " + login + " should be in merged users");
+                assertEquals(name, found.name, "User " + login + " should have name " + name);
+                assertEquals(email, found.email, "User " + login + " should have email " + email);
+            }
+        });
     }
 
     public ResultAnalyser hasUserCount(int expectedCount) {
-        loadRecordsIfNeeded();
-        assertEquals(expectedCount, records.size(),
-                "Merged users count should be " + expectedCount);
-        return this;
-    }
+        return check(new Check() {
+            private int count;
 
-    public ResultAnalyser hasNoDuplicates() {
-        loadRecordsIfNeeded();
-        Set<String> usernames = new HashSet<>();
-        List<String> duplicates = new ArrayList<>();
+            @Override
+            void record(UserRecord record) {
+                count++;
+            }
 
-        for (UserRecord record : records) {
-            if (!usernames.add(record.login)) {
-                duplicates.add(record.login);
+            @Override
+            void finish() {
+                assertEquals(expectedCount, count, "Merged users count should be " + expectedCount);
             }
-        }
+        });
+    }
 
-        assertTrue(duplicates.isEmpty(),
-                "Found duplicate users: " + String.join(", ", duplicates));
+    // Streams the output against the expected rows in bounded memory; the script keeps users.txt order, so order counts
+    public ResultAnalyser matchesMergedUsers(List<UserRecord> expectedUsers) {
+        verify();
+        Iterator<String> expectedRows = expectedUsers.stream()
+                .map(user -> user.login + "," + user.name + "," + user.email)
+                .iterator();
+        OutputDiff.Result diff = new OutputDiff(workDirectory)
+                .withRowOrder()
+                .compare(Paths.get(resultFile), "login,name,email", expectedRows);
+        assertTrue(diff.isIdentical(), "Merged users should match the reference: " + diff);
         return this;
     }
 
-    public ResultAnalyser isSortedByLogin() {
-        loadRecordsIfNeeded();
-        List<String> usernames = records.stream()
-                .map(record -> record.login)
-                .collect(Collectors.toList());
+    public ResultAnalyser hasNoDuplicates() {
+        return check(new Check() {
+            private final Set<String> usernames = new HashSet<>();
+            private final List<String> duplicates = new ArrayList<>();
+
+            @Override
+            void record(UserRecord record) {
+                if (!usernames.add(record.login)) {
+                    duplicates.add(record.login);
+                }
+            }
 
-        List<String> sortedUsernames = new ArrayList<>(usernames);
-        sortedUsernames.sort(String::compareTo);
+            @Override
+            void finish() {
+                assertTrue(duplicates.isEmpty(), "Found duplicate users: " + String.join(", ", duplicates));
+            }
+        });
+    }
 
-        assertEquals(sortedUsernames, usernames,
-                "Users should be sorted alphabetically by login");
-        return this;
+    // Only the previous login is kept: a list is sorted exactly when every adjacent pair is in order
+    public ResultAnalyser isSortedByLogin() {
+        return check(new Check() {
+            private String previous;
+            private int row;
+
+            @Override
+            void record(UserRecord record) {
+                row++;
+                assertTrue(previous == null || previous.compareTo(record.login) <= 0,
+                        "Users should be sorted alphabetically by login, but " + record.login + " (row " + row
+                                + ") follows " + previous);
+                previous = record.login;
+            }
+        });
     }
 
     public ResultAnalyser fileExists() {
-        Path resultPath = Paths.get(RESULT_FILE);
+        Path resultPath = Paths.get(resultFile);
         assertTrue(Files.exists(resultPath),
-                "Result file " + RESULT_FILE + " should exist");
+                "Result file " + resultFile + " should exist");
         return this;
     }
 
     public ResultAnalyser hasValidCsvFormat() {
-        loadRecordsIfNeeded();
-
-        try (BufferedReader reader = new BufferedReader(new FileReader(RESULT_FILE))) {
-            String headerLine = reader.readLine();
-            assertNotNull(headerLine, "CSV file should have a header");
-            assertEquals("login,name,email", headerLine,
-                    "CSV header should be 'login,name,email'");
+        return check(new Check() {
+            @Override
+            void header(String headerLine) {
+                assertNotNull(headerLine, "CSV file should have a header");
+                assertEquals("login,name,email", headerLine,
+                        "CSV header should be 'login,name,email'");
+            }
 
-            String line;
-            int lineNumber = 2;
-            while ((line = reader.readLine()) != null) {
-                if (!line.trim().isEmpty()) {
-                    String[] parts = line.split(",", 3);
-                    assertEquals(3, parts.length,
-                            "Line " + lineNumber + " should have exactly 3 columns");
-
-                    assertFalse(parts[0].trim().isEmpty(),
-                            "Login should not be empty on line " + lineNumber);
-                    assertFalse(parts[1].trim().isEmpty(),
-                            "Name should not be empty on line " + lineNumber);
-                    assertFalse(parts[2].trim().isEmpty(),
-                            "Email should not be empty on line " + lineNumber);
-
-                    // Перевіряємо формат email
-                    assertTrue(parts[2].contains("@"),
-                            "Email should contain @ on line " + lineNumber);
+            @Override
+            void line(int lineNumber, String line) {
+                if (line.trim().isEmpty()) {
+                    return;
                 }
-                lineNumber++;
+                String[] parts = line.split(",", 3);
+                assertEquals(3, parts.length,
+                        "Line " + lineNumber + " should have exactly 3 columns");
+
+                assertFalse(parts[0].trim().isEmpty(),
+                        "Login should not be empty on line " + lineNumber);
+                assertFalse(parts[1].trim().isEmpty(),
+                        "Name should not be empty on line " + lineNumber);
+                assertFalse(parts[2].trim().isEmpty(),
+                        "Email should not be empty on line " + lineNumber);
+
+                // Перевіряємо формат email
+                assertTrue(parts[2].contains("@"),
+                        "Email should contain @ on line " + lineNumber);
             }
-        } catch (IOException e) {
-            fail("Failed to read result file: " + e.getMessage());
-        }
-
-        return this;
+        });
     }
 
     public ResultAnalyser allUsersHaveCompleteData() {
-        loadRecordsIfNeeded();
+        return check(new Check() {
+            @Override
+            void record(UserRecord record) {
+                assertNotNull(record.login, "Login should not be null");
+                assertNotNull(record.name, "Name should not be null for user " + record.login);
+                assertNotNull(record.email, "Email should not be null for user " + record.login);
+
+                assertFalse(record.login.trim().isEmpty(), "Login should not be empty");
+                assertFalse(record.name.trim().isEmpty(), "Name should not be empty for user " + record.login);
+                assertFalse(record.email.trim().isEmpty(), "Email should not be empty for user " + record.login);
+
+                assertTrue(record.email.contains("@"), "Email should be valid for user " + record.login);
+            }
+        });
+    }
 
-        for (UserRecord record : records) {
-            assertNotNull(record.login, "Login should not be null");
-            assertNotNull(record.name, "Name should not be null for user " + record.login);
-            assertNotNull(record.email, "Email should not be null for user " + record.login);
+    // Checks every output assertion the block makes in one read of the output, before returning, and fails with the
+    // first failure in chain order; outside such a block each assertion reads the output on its own
+    public ResultAnalyser inOnePass(Consumer<ResultAnalyser> assertions) {
+        if (inOnePass) {
+            assertions.accept(this);
+            return this;
+        }
+        inOnePass = true;
+        try {
+            assertions.accept(this);
+            verify();
+        } finally {
+            inOnePass = false;
+            pendingChecks.clear();
+        }
+        return this;
+    }
 
-            assertFalse(record.login.trim().isEmpty(), "Login should not be empty");
-            assertFalse(record.name.trim().isEmpty(), "Name should not be empty for user " + record.login);
-            assertFalse(record.email.trim().isEmpty(), "Email should not be empty for user " + record.login);
+    public int getOutputScans() {
+        return outputScans;
+    }
 
-            assertTrue(record.email.contains("@"), "Email should be valid for user " + record.login);
+    private void verify() {
+        if (pendingChecks.isEmpty()) {
+            return;
         }
+        List<Check> checks = new ArrayList<>(pendingChecks);
+        pendingChecks.clear();
+        scan(checks);
 
-        return this;
+        for (Check check : checks) {
+            if (check.failure == null) {
+                check.apply(check::finish);
+            }
+            if (check.failure instanceof RuntimeException) {
+                throw (RuntimeException) check.failure;
+            }
+            if (check.failure != null) {
+                throw (AssertionError) check.failure;
+            }
+        }
     }
 
     public int getUserCount() {
+        verify();
         loadRecordsIfNeeded();
         return records.size();
     }
 
     public List<String> getUsernames() {
+        verify();
         loadRecordsIfNeeded();
         return records.stream()
                 .map(record -> record.login)
@@ -198,6 +316,7 @@ public class ResultAnalyser {
     }
 
     public List<UserRecord> getAllUsers() {
+        verify();
         loadRecordsIfNeeded();
         return new ArrayList<>(records);
     }
@@ -211,23 +330,71 @@ public class ResultAnalyser {
     private void loadRecords() {
         records.clear();
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(RESULT_FILE))) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(resultFile))) {
+            String headerLine = reader.readLine();
+            if (headerLine == null) {
+                return;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                UserRecord record = parseRecord(line);
+                if (record != null) {
+                    records.add(record);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read result file: " + resultFile, e);
+        }
+    }
+
+    private ResultAnalyser check(Check check) {
+        pendingChecks.add(check);
+        if (!inOnePass) {
+            verify();
+        }
+        return this;
+    }
+
+    private void scan(List<Check> checks) {
+        outputScans++;
+        try (BufferedReader reader = new BufferedReader(new FileReader(resultFile), 1 << 16)) {
             String headerLine = reader.readLine();
+            for (Check check : checks) {
+                check.apply(() -> check.header(headerLine));
+            }
             if (headerLine == null) {
                 return;
             }
 
             String line;
+            int lineNumber = 2;
             while ((line = reader.readLine()) != null) {
-                if (!line.trim().isEmpty()) {
-                    String[] parts = line.split(",", 3);
-                    if (parts.length == 3) {
-                        records.add(new UserRecord(parts[0].trim(), parts[1].trim(), parts[2].trim()));
+                UserRecord record = parseRecord(line);
+                for (Check check : checks) {
+                    if (check.failure == null) {
+                        try {
+                            check.line(lineNumber, line);
+                            if (record != null) {
+                                check.record(record);
+                            }
+                        } catch (AssertionError | RuntimeException e) {
+                            check.failure = e;
+                        }
                     }
                 }
+                lineNumber++;
             }
         } catch (IOException e) {
-            throw new RuntimeException("Failed to read result file: " + RESULT_FILE, e);
+            throw new RuntimeException("Failed to read result file: " + resultFile, e);
+        }
+    }
+
+    private static UserRecord parseRecord(String line) {
+        if (line.trim().isEmpty()) {
+            return null;
         }
+        String[] parts = line.split(",", 3);
+        return parts.length == 3 ? new UserRecord(parts[0].trim(), parts[1].trim(), parts[2].trim()) : null;
     }
-}
\ No newline at end of file
+}
@@ -1,28 +1,170 @@
 package helpers;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.lang.management.ManagementFactory;
-import java.lang.management.MemoryMXBean;
-import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class ScriptRunner {
+    public static final String DEADLINE_PROPERTY = "script.deadline.ms";
     private static final String SCRIPT_PATH = Paths.get(System.getProperty("user.dir"), "merge_users.sh").toString();
-    private static final String DATA_DIR = Paths.get(System.getProperty("user.dir"), "data").toString();
+    private static final long SAMPLE_INTERVAL_MS = 10;
+    private static final long KILL_WAIT_MS = 1000;
 
+    // What a script killed at its deadline had done by then
+    public static class DeadlineExceeded {
+        public final long deadlineMs;
+        public final long elapsedMs;
+        public final long cpuTimeMs;
+        public final long peakRssBytes;
+        public final long outputBytes;
+        public final long outputLines;
+        public final Path resultFile;
+        public final long resultBytes;
+        public final long resultLines;
+        public final List<ProcessHandle> killedProcesses;
+
+        DeadlineExceeded(long deadlineMs, long elapsedMs, long cpuTimeMs, long peakRssBytes, long outputBytes,
+                long outputLines, Path resultFile, long resultBytes, long resultLines,
+                List<ProcessHandle> killedProcesses) {
+            this.deadlineMs = deadlineMs;
+            this.elapsedMs = elapsedMs;
+            this.cpuTimeMs = cpuTimeMs;
+            this.peakRssBytes = peakRssBytes;
+            this.outputBytes = outputBytes;
+            this.outputLines = outputLines;
+            this.resultFile = resultFile;
+            this.resultBytes = resultBytes;
+            this.resultLines = resultLines;
+            this.killedProcesses = killedProcesses;
+        }
+
+        public List<ProcessHandle> getSurvivors() {
+            return killedProcesses.stream().filter(ScriptRunner::isRunning).toList();
+        }
+
+        @Override
+        public String toString() {
+            return "killed " + killedProcesses.size() + " processes after " + elapsedMs + "ms (deadline " + deadlineMs
+                    + "ms); by then it had used " + cpuTimeMs + "ms CPU and " + peakRssBytes + " bytes peak RSS, "
+                    + "written " + outputLines + " lines (" + outputBytes + " bytes) to stdout and " + resultLines
+                    + " lines (" + resultBytes + " bytes) to " + resultFile.getFileName();
+        }
+    }
+
+    // Bytes and lines of one file the script read or wrote; zero for a file that does not exist
+    public static class FileSize {
+        public final Path file;
+        public final long bytes;
+        public final long lines;
+
+        FileSize(Path file) {
+            this.file = file;
+            this.bytes = Files.isRegularFile(file) ? size(file) : 0;
+            this.lines = Files.isRegularFile(file) ? LineCounter.count(file) : 0;
+        }
+    }
+
+    public static class Throughput {
+        public final long elapsedNanos;
+        public final List<FileSize> inputs;
+        public final FileSize output;
+        // Users listed in users.txt, and users written to the result file under its header
+        public final long rowsIn;
+        public final long rowsOut;
+
+        Throughput(long elapsedNanos, List<FileSize> inputs, FileSize output, long rowsIn, long rowsOut) {
+            this.elapsedNanos = elapsedNanos;
+            this.inputs = inputs;
+            this.output = output;
+            this.rowsIn = rowsIn;
+            this.rowsOut = rowsOut;
+        }
+
+        // A measured series is judged at its median latency rather than at whichever run came last
+        Throughput withElapsedNanos(long elapsedNanos) {
+            return new Throughput(elapsedNanos, inputs, output, rowsIn, rowsOut);
+        }
+
+        public long getBytesIn() {
+            return inputs.stream().mapToLong(input -> input.bytes).sum();
+        }
+
+        public double getRowsInPerSecond() {
+            return perSecond(rowsIn);
+        }
+
+        public double getRowsOutPerSecond() {
+            return perSecond(rowsOut);
+        }
+
+        // Decimal megabytes, as capacity plans quote them
+        public double getMegabytesInPerSecond() {
+            return perSecond(getBytesIn()) / 1_000_000;
+        }
+
+        public double getMegabytesOutPerSecond() {
+            return perSecond(output.bytes) / 1_000_000;
+        }
+
+        private double perSecond(long amount) {
+            return elapsedNanos == 0 ? 0 : amount * 1_000_000_000.0 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d rows in (%.0f rows/s, %.2f MB/s), %d rows out (%.0f rows/s, %.2f MB/s) in %.1fms",
+                    rowsIn, getRowsInPerSecond(), getMegabytesInPerSecond(), rowsOut, getRowsOutPerSecond(),
+                    getMegabytesOutPerSecond(), elapsedNanos / 1_000_000.0);
+        }
+    }
+
+    private final Workspace workspace;
+    private final Path resultFile;
+    private final PerformanceHistory history = new PerformanceHistory();
     private String errorMessage = "";
     private String outputMessage = "";
     private int exitCode;
-    private long executionTimeMs;
+    private long executionTimeNanos;
     private long memoryUsedBytes;
     private long cpuTimeMs;
+    private List<ProcessSampler.Sample> memorySamples = new ArrayList<>();
+    private int headLines = OutputCapture.UNBOUNDED;
+    private int tailLines;
+    private long outputLineCount;
+    private long outputBytes;
+    private long errorLineCount;
+    // Lines of stdout and stderr a bounded capture kept only up to its per-line cap
+    private long cutLineCount;
+    private long errorBytes;
+    private LatencyStatistics latencyStatistics;
+    private boolean measuring;
+    // 0 waits for as long as the script takes
+    private long deadlineMs = Long.getLong(DEADLINE_PROPERTY, 0);
+    private DeadlineExceeded deadlineExceeded;
+    private boolean historyEnabled = true;
+    private boolean forkProfiling;
+    private ForkProfiler.Report forkProfile;
+    private boolean lineProfiling;
+    private LineProfiler.Report lineProfile;
+    private Throughput throughput;
+    private final List<PerformanceHistory.Run> recentRuns = new ArrayList<>();
+
+    public ScriptRunner(Workspace workspace) {
+        this.workspace = workspace;
+        this.resultFile = Paths.get(workspace.dataFile("full_users.csv"));
+    }
 
     public void executeScript() {
-        String usersFile = Paths.get(DATA_DIR, "users.txt").toString();
-        String jsonFile = Paths.get(DATA_DIR, "users.json").toString();
-        String csvFile = Paths.get(DATA_DIR, "users.csv").toString();
+        String usersFile = workspace.dataFile("users.txt");
+        String jsonFile = workspace.dataFile("users.json");
+        String csvFile = workspace.dataFile("users.csv");
 
         runScript(usersFile, jsonFile, csvFile);
     }
@@ -31,67 +173,222 @@ public class ScriptRunner {
         runScript(usersFile, jsonFile, csvFile);
     }
 
-    private void runScript(String usersFile, String jsonFile, String csvFile) {
+    public LatencyStatistics measure(int warmupIterations, int minIterations, int maxIterations,
+            double maxRelativeConfidenceInterval) {
+        // Warmup runs fill the page cache and load the script's tools before anything is recorded
+        for (int i = 0; i < warmupIterations && deadlineExceeded == null; i++) {
+            executeScript();
+        }
 
+        LatencyStatistics statistics = new LatencyStatistics();
+        recentRuns.clear();
+        measuring = true;
+        // Keep sampling until the mean is pinned down tightly enough or the iteration budget is spent
+        while (deadlineExceeded == null && statistics.getCount() < maxIterations
+                && (statistics.getCount() < minIterations
+                        || statistics.getRelativeConfidenceInterval() > maxRelativeConfidenceInterval)) {
+            executeScript();
+            // A killed run says nothing about the script's latency, and the series stops there
+            if (deadlineExceeded == null) {
+                statistics.record(executionTimeNanos);
+            }
+        }
+        measuring = false;
+        latencyStatistics = statistics;
+        if (throughput != null && statistics.getCount() > 0) {
+            throughput = throughput.withElapsedNanos(statistics.percentileNanos(50));
+        }
+        return statistics;
+    }
 
-        long startTime = System.currentTimeMillis();
-        long startMemory = getUsedMemory();
-        long startCpuTime = getCpuTime();
+    private void runScript(String usersFile, String jsonFile, String csvFile) {
+        deadlineExceeded = null;
+
+        long startTime = System.nanoTime();
 
-        ProcessBuilder processBuilder = new ProcessBuilder("bash", SCRIPT_PATH, usersFile, jsonFile, csvFile);
+        // The script writes its result to data/ relative to the working directory
+        ProcessBuilder processBuilder = new ProcessBuilder("bash", SCRIPT_PATH, usersFile, jsonFile, csvFile)
+                .directory(workspace.getRoot().toFile());
 
+        LineProfiler lineProfiler = null;
+        ProcessSampler sampler = null;
+        ForkProfiler profiler = null;
         try {
+            lineProfiler = lineProfiling ? new LineProfiler(workspace.getRoot()) : null;
+            if (lineProfiler != null) {
+                lineProfiler.configure(processBuilder);
+                lineProfiler.start();
+            }
             Process process = processBuilder.start();
+            sampler = new ProcessSampler(SAMPLE_INTERVAL_MS).start(process);
+            profiler = forkProfiling ? new ForkProfiler().start(process) : null;
 
-            StringBuilder outputBuilder = new StringBuilder();
-            StringBuilder errorBuilder = new StringBuilder();
+            // Both streams are drained at the same time, so a chatty stderr cannot fill its pipe and stall the script
+            OutputCapture output = new OutputCapture(headLines, tailLines).drain(process.getInputStream(), "stdout");
+            OutputCapture errors = new OutputCapture(headLines, tailLines).drain(process.getErrorStream(), "stderr");
 
-            try (BufferedReader outputReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-                    BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
-
-                String line;
-                while ((line = outputReader.readLine()) != null) {
-                    outputBuilder.append(line).append("\n");
-                }
-
-                while ((line = errorReader.readLine()) != null) {
-                    errorBuilder.append(line).append("\n");
-                }
+            List<ProcessHandle> killed = List.of();
+            if (deadlineMs > 0 && !process.waitFor(deadlineMs, TimeUnit.MILLISECONDS)) {
+                // Stopping the sampler first takes a last sample of the live tree, so CPU and memory cover all it did
+                sampler.stop();
+                stop(profiler);
+                killed = killTree(process.toHandle());
             }
-
             exitCode = process.waitFor();
-            outputMessage = outputBuilder.toString();
-            errorMessage = errorBuilder.toString();
+            sampler.stop();
+            stop(profiler);
+            // Last, as the trace only ends once everything the script started has exited
+            stop(lineProfiler);
+            output.await();
+            errors.await();
+            if (output.getFailure() != null) {
+                throw output.getFailure();
+            }
+            if (errors.getFailure() != null) {
+                throw errors.getFailure();
+            }
+
+            outputMessage = output.getText();
+            errorMessage = errors.getText();
+            outputLineCount = output.getLineCount();
+            outputBytes = output.getByteCount();
+            errorLineCount = errors.getLineCount();
+            cutLineCount = output.getCutLineCount() + errors.getCutLineCount();
+            errorBytes = errors.getByteCount();
 
             // If no stderr but stdout contains error, use stdout
             if (errorMessage.trim().isEmpty() && (outputMessage.contains("❌") || outputMessage.contains("not found"))) {
                 errorMessage = outputMessage;
             }
 
-            long endTime = System.currentTimeMillis();
-            long endMemory = getUsedMemory();
-            long endCpuTime = getCpuTime();
+            long endTime = System.nanoTime();
 
-            executionTimeMs = endTime - startTime;
-            memoryUsedBytes = endMemory - startMemory;
-            cpuTimeMs = (endCpuTime - startCpuTime) / 1_000_000;
+            executionTimeNanos = endTime - startTime;
+            memoryUsedBytes = sampler.getPeakRssBytes();
+            cpuTimeMs = sampler.getCpuTimeMs();
+            memorySamples = sampler.getSamples();
+            lineProfile = lineProfiler == null ? null : lineProfiler.report(Paths.get(SCRIPT_PATH));
 
+            Path root = workspace.getRoot();
+            // Relative input paths are resolved the way the script sees them, from the workspace
+            List<Path> inputs = List.of(root.resolve(usersFile), root.resolve(jsonFile), root.resolve(csvFile));
+            List<FileSize> inputSizes = inputs.stream().map(FileSize::new).toList();
+            FileSize result = new FileSize(resultFile);
+            // Each line of users.txt is one user the script looks up
+            throughput = new Throughput(executionTimeNanos, inputSizes, result, inputSizes.get(0).lines,
+                    Math.max(0, result.lines - 1));
+            forkProfile = profiler == null ? null : profiler.report(throughput.rowsIn);
 
+            if (!killed.isEmpty()) {
+                deadlineExceeded = new DeadlineExceeded(deadlineMs, executionTimeNanos / 1_000_000, cpuTimeMs,
+                        memoryUsedBytes, outputBytes, outputLineCount, resultFile, result.bytes, result.lines, killed);
+                // A run cut short would only skew the history it is compared against
+                return;
+            }
+            // So would runs competing with other instances of the script, or slowed by a profiler; and a single run
+            // may share the box with tests running in parallel, where a measured series runs with the box to itself
+            if (!historyEnabled || !measuring || profiler != null || lineProfiler != null) {
+                return;
+            }
 
+            PerformanceHistory.Run run = history.record(Paths.get(SCRIPT_PATH), inputs, exitCode, executionTimeNanos, cpuTimeMs,
+                    memoryUsedBytes);
+            // A measured series is compared as a whole
+            recentRuns.add(run);
         } catch (IOException | InterruptedException e) {
             errorMessage = e.getMessage();
-            executionTimeMs = System.currentTimeMillis() - startTime;
+            executionTimeNanos = System.nanoTime() - startTime;
+        } finally {
+            // A script that failed to start, or a run cut off by an exception, would otherwise leave the profilers'
+            // threads running and the xtrace FIFO and its startup file behind
+            stopAll(sampler, profiler, lineProfiler);
         }
     }
 
-    private long getUsedMemory() {
-        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
-        return memoryBean.getHeapMemoryUsage().getUsed();
+    // Parents go before their children, so nothing already listed can fork a replacement that escapes the kill
+    private static List<ProcessHandle> killTree(ProcessHandle root) throws InterruptedException {
+        List<ProcessHandle> killed = new ArrayList<>();
+        Deque<ProcessHandle> pending = new ArrayDeque<>(List.of(root));
+        while (!pending.isEmpty()) {
+            ProcessHandle handle = pending.poll();
+            // Children are listed while their parent lives, as they are reparented out of reach once it is gone
+            List<ProcessHandle> children = handle.children().toList();
+            handle.destroyForcibly();
+            killed.add(handle);
+            pending.addAll(children);
+        }
+
+        long waitUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(KILL_WAIT_MS);
+        for (ProcessHandle handle : killed) {
+            while (isRunning(handle) && System.nanoTime() < waitUntil) {
+                Thread.sleep(5);
+            }
+        }
+        return killed;
     }
 
-    private long getCpuTime() {
-        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
-        return threadBean.getCurrentThreadCpuTime();
+    // Orphans stay zombies until something reaps them, which some container init processes never do
+    private static boolean isRunning(ProcessHandle handle) {
+        try {
+            String stat = Files.readString(Paths.get("/proc", handle.pid() + "/stat"), StandardCharsets.US_ASCII);
+            return stat.charAt(stat.lastIndexOf(')') + 2) != 'Z';
+        } catch (IOException | RuntimeException e) {
+            return handle.isAlive();
+        }
+    }
+
+    // Every stop is a no-op once done, so after a normal run this only repeats what already happened in order
+    private static void stopAll(ProcessSampler sampler, ForkProfiler profiler, LineProfiler lineProfiler) {
+        try {
+            if (sampler != null) {
+                sampler.stop();
+            }
+            stop(profiler);
+            stop(lineProfiler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void stop(ForkProfiler profiler) throws InterruptedException {
+        if (profiler != null) {
+            profiler.stop();
+        }
+    }
+
+    private static void stop(LineProfiler profiler) throws InterruptedException {
+        if (profiler != null) {
+            profiler.stop();
+        }
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public void withDeadline(long deadlineMs) {
+        this.deadlineMs = deadlineMs;
+    }
+
+    public void withoutHistory() {
+        this.historyEnabled = false;
+    }
+
+    public void withForkProfile() {
+        this.forkProfiling = true;
+    }
+
+    public void withLineProfile() {
+        this.lineProfiling = true;
+    }
+
+    public void withOutputLimit(int headLines, int tailLines) {
+        this.headLines = headLines;
+        this.tailLines = tailLines;
     }
 
     public int getExitCode() {
@@ -106,8 +403,67 @@ public class ScriptRunner {
         return outputMessage;
     }
 
+    public long getOutputLineCount() {
+        return outputLineCount;
+    }
+
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    public long getErrorLineCount() {
+        return errorLineCount;
+    }
+
+    public long getCutLineCount() {
+        return cutLineCount;
+    }
+
+    public long getErrorBytes() {
+        return errorBytes;
+    }
+
+    public Path getResultFile() {
+        return resultFile;
+    }
+
+    public ForkProfiler.Report getForkProfile() {
+        return forkProfile;
+    }
+
+    public Throughput getThroughput() {
+        return throughput;
+    }
+
+    public LineProfiler.Report getLineProfile() {
+        return lineProfile;
+    }
+
+    public DeadlineExceeded getDeadlineExceeded() {
+        return deadlineExceeded;
+    }
+
     public long getExecutionTimeMs() {
-        return executionTimeMs;
+        return executionTimeNanos / 1_000_000;
+    }
+
+    public long getExecutionTimeNanos() {
+        return executionTimeNanos;
+    }
+
+    public PerformanceHistory.Regression compareWithHistory() {
+        if (recentRuns.isEmpty()) {
+            throw new IllegalStateException("No measured script run to compare");
+        }
+        return history.compare(recentRuns);
+    }
+
+    public Path getHistoryFile() {
+        return history.getFile();
+    }
+
+    public LatencyStatistics getLatencyStatistics() {
+        return latencyStatistics;
     }
 
     public long getMemoryUsedBytes() {
@@ -118,7 +474,11 @@ public class ScriptRunner {
         return cpuTimeMs;
     }
 
+    public List<ProcessSampler.Sample> getMemorySamples() {
+        return memorySamples;
+    }
+
     public boolean isPerformanceAcceptable(long maxTimeMs, long maxMemoryBytes) {
-        return executionTimeMs <= maxTimeMs && Math.abs(memoryUsedBytes) <= maxMemoryBytes;
+        return getExecutionTimeMs() <= maxTimeMs && Math.abs(memoryUsedBytes) <= maxMemoryBytes;
     }
 }
\ No newline at end of file
@@ -0,0 +1,156 @@
+package helpers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+public class ShardedFileWriter {
+    // Shard boundaries never depend on the core count, so the same seed always produces the same bytes
+    public static final int ROWS_PER_SHARD = 16_384;
+
+    public interface RowWriter {
+        void write(long row, SplittableRandom random, ByteBuffer buffer);
+    }
+
+    private final int parallelism;
+    private final int maxRowLength;
+
+    public ShardedFileWriter(int parallelism, int maxRowLength) {
+        this.parallelism = Math.max(1, parallelism);
+        this.maxRowLength = maxRowLength;
+    }
+
+    public static SplittableRandom shardRandom(long seed, long shard) {
+        return new SplittableRandom(mix(seed, shard));
+    }
+
+    // SplitMix64 finaliser: well-spread bits for any (seed, index), without allocating a generator per row
+    public static long mix(long seed, long index) {
+        long z = seed + (index + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    public static void putAscii(ByteBuffer buffer, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+    }
+
+    public static void putTwoDigits(ByteBuffer buffer, int value) {
+        buffer.put((byte) ('0' + value / 10)).put((byte) ('0' + value % 10));
+    }
+
+    public static void putNumber(ByteBuffer buffer, long value) {
+        long divisor = 1;
+        while (divisor * 10 <= value) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + (value / divisor) % 10));
+        }
+    }
+
+    public long write(Path file, String header, long rows, long seed, RowWriter rowWriter, String footer) {
+        byte[] headerBytes = header.getBytes(StandardCharsets.UTF_8);
+        byte[] footerBytes = footer.getBytes(StandardCharsets.UTF_8);
+        long shards = (rows + ROWS_PER_SHARD - 1) / ROWS_PER_SHARD;
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "data-generator-shard");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Bounds the number of rendered shards held in memory at once
+        Semaphore inFlight = new Semaphore(parallelism * 2);
+
+        try (FileChannel channel = openReplacing(file)) {
+            writeFully(channel, ByteBuffer.wrap(headerBytes), 0);
+            long position = headerBytes.length;
+
+            Deque<Future<ByteBuffer>> rendered = new ArrayDeque<>();
+            Deque<Future<?>> writes = new ArrayDeque<>();
+            long nextShard = 0;
+
+            while (nextShard < shards || !rendered.isEmpty()) {
+                if (rendered.isEmpty()) {
+                    inFlight.acquire();
+                    long shard = nextShard++;
+                    rendered.add(executor.submit(() -> renderShard(shard, rows, seed, rowWriter)));
+                }
+                while (nextShard < shards && inFlight.tryAcquire()) {
+                    long shard = nextShard++;
+                    rendered.add(executor.submit(() -> renderShard(shard, rows, seed, rowWriter)));
+                }
+
+                ByteBuffer buffer = rendered.poll().get();
+                long offset = position;
+                position += buffer.remaining();
+                writes.add(executor.submit(() -> {
+                    try {
+                        writeFully(channel, buffer, offset);
+                    } finally {
+                        inFlight.release();
+                    }
+                    return null;
+                }));
+
+                while (!writes.isEmpty() && writes.peek().isDone()) {
+                    writes.poll().get();
+                }
+            }
+
+            for (Future<?> write : writes) {
+                write.get();
+            }
+            writeFully(channel, ByteBuffer.wrap(footerBytes), position);
+            return position + footerBytes.length;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write " + file, e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to generate " + file, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while generating " + file, e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Replaces instead of truncating, so a dataset hard-linked from the cache is never overwritten in place
+    private static FileChannel openReplacing(Path file) throws IOException {
+        Files.deleteIfExists(file);
+        return FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    private ByteBuffer renderShard(long shard, long rows, long seed, RowWriter rowWriter) {
+        long first = shard * ROWS_PER_SHARD;
+        long last = Math.min(rows, first + ROWS_PER_SHARD);
+        ByteBuffer buffer = ByteBuffer.allocate((int) (last - first) * maxRowLength);
+
+        SplittableRandom random = shardRandom(seed, shard);
+        for (long row = first; row < last; row++) {
+            rowWriter.write(row, random, buffer);
+        }
+        return buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package helpers;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// In-process equivalent of merge_users.sh: one pass over each input and a hash join, O(n + m) instead of O(n * m)
+public class UserMerger {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private long bytesProcessed;
+    private long rowsProcessed;
+    private long elapsedNanos;
+
+    public List<ResultAnalyser.UserRecord> merge(Path usersFile, Path jsonFile, Path csvFile) {
+        long startTime = System.nanoTime();
+
+        Map<String, String> names = readNames(jsonFile);
+        Map<String, String> emails = readEmails(csvFile);
+
+        List<ResultAnalyser.UserRecord> merged = new ArrayList<>();
+        long[] rows = new long[1];
+        // `while read -r` never sees a last line without a newline, and trims blanks around the login
+        forEachLine(usersFile, false, line -> {
+            rows[0]++;
+            String login = trimBlanks(line);
+            if (login.isEmpty()) {
+                return;
+            }
+            String name = names.get(login);
+            String email = emails.get(login);
+            if (name != null && email != null && !email.isEmpty()) {
+                merged.add(new ResultAnalyser.UserRecord(login, name, email));
+            }
+        });
+
+        bytesProcessed = size(usersFile) + size(jsonFile) + size(csvFile);
+        rowsProcessed = rows[0];
+        elapsedNanos = System.nanoTime() - startTime;
+        return merged;
+    }
+
+    public void writeMergedUsers(Path usersFile, Path jsonFile, Path csvFile, Path output) {
+        List<ResultAnalyser.UserRecord> merged = merge(usersFile, jsonFile, csvFile);
+        try {
+            Files.createDirectories(output.getParent());
+            try (Writer writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+                writer.write("login,name,email\n");
+                for (ResultAnalyser.UserRecord user : merged) {
+                    writer.write(user.login + "," + user.name + "," + user.email + "\n");
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write merged users file: " + output, e);
+        }
+    }
+
+    // Mirrors `jq -r '.[$login] // null'`: null, false and the string "null" all leave the name empty
+    private static Map<String, String> readNames(Path jsonFile) {
+        Map<String, String> names = new HashMap<>();
+        try (JsonParser parser = MAPPER.getFactory().createParser(jsonFile.toFile())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                // jq cannot look up a login in anything but an object
+                return names;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String login = parser.getCurrentName();
+                String name = render(parser, parser.nextToken());
+                // Command substitution drops trailing newlines
+                while (name != null && name.endsWith("\n")) {
+                    name = name.substring(0, name.length() - 1);
+                }
+                // Like jq, the last occurrence of a duplicated key wins
+                if (name == null || name.isEmpty() || name.equals("null")) {
+                    names.remove(login);
+                } else {
+                    names.put(login, name);
+                }
+            }
+        } catch (JsonProcessingException e) {
+            // jq prints nothing for a malformed file, so every name comes out empty
+            return new HashMap<>();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read users JSON file: " + jsonFile, e);
+        }
+        return names;
+    }
+
+    private static String render(JsonParser parser, JsonToken value) throws IOException {
+        switch (value) {
+            case VALUE_STRING:
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getText();
+            case VALUE_TRUE:
+                return "true";
+            case START_OBJECT:
+            case START_ARRAY:
+                // jq would pretty-print these over several lines; the generator never writes them
+                return parser.readValueAsTree().toString();
+            default:
+                return null;
+        }
+    }
+
+    // Mirrors `tail -n +2 | grep "^$login," | cut -d',' -f2 | head -1`: the first row for a login wins
+    private static Map<String, String> readEmails(Path csvFile) {
+        Map<String, String> emails = new HashMap<>();
+        boolean[] header = { true };
+        forEachLine(csvFile, true, line -> {
+            if (header[0]) {
+                header[0] = false;
+                return;
+            }
+            int comma = line.indexOf(',');
+            if (comma < 0) {
+                return;
+            }
+            int end = line.indexOf(',', comma + 1);
+            // Logins are matched literally, where grep would read regex metacharacters in a login as a pattern
+            emails.putIfAbsent(line.substring(0, comma), line.substring(comma + 1, end < 0 ? line.length() : end));
+        });
+        return emails;
+    }
+
+    // Splits on '\n' only, as bash and grep do, so a stray '\r' stays part of the line
+    private static void forEachLine(Path file, boolean includeUnterminated, Consumer<String> consumer) {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream input = new BufferedInputStream(Files.newInputStream(file))) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        line.write(buffer, start, i - start);
+                        consumer.accept(line.toString(StandardCharsets.UTF_8));
+                        line.reset();
+                        start = i + 1;
+                    }
+                }
+                line.write(buffer, start, read - start);
+            }
+            if (includeUnterminated && line.size() > 0) {
+                consumer.accept(line.toString(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + file, e);
+        }
+    }
+
+    private static String trimBlanks(String line) {
+        int start = 0;
+        int end = line.length();
+        while (start < end && (line.charAt(start) == ' ' || line.charAt(start) == '\t')) {
+            start++;
+        }
+        while (end > start && (line.charAt(end - 1) == ' ' || line.charAt(end - 1) == '\t')) {
+            end--;
+        }
+        return line.substring(start, end);
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public long getBytesProcessed() {
+        return bytesProcessed;
+    }
+
+    public long getRowsProcessed() {
+        return rowsProcessed;
+    }
+
+    public long getElapsedTimeMs() {
+        return elapsedNanos / 1_000_000;
+    }
+
+    public double getBytesPerSecond() {
+        return elapsedNanos == 0 ? 0 : bytesProcessed * 1_000_000_000.0 / elapsedNanos;
+    }
+}
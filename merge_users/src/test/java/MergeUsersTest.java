@@ -1,15 +1,19 @@
+import helpers.CapacitySearch;
+import helpers.ForkProfiler;
+import helpers.LineProfiler;
+import helpers.LoadRunner;
+import helpers.ScriptRunner;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.parallel.Isolated;
+import org.opentest4j.AssertionFailedError;
 
-public class MergeUsersTest {
+import java.util.Comparator;
 
-    @BeforeEach
-    public void setUp() {
-        new TestScenario().cleanupTestFiles();
-    }
+public class MergeUsersTest {
 
     @AfterEach
     public void tearDown() {
-        new TestScenario().cleanupTestFiles();
+        TestScenario.deleteWorkspaces();
     }
 
     @Test
@@ -103,6 +107,96 @@ public class MergeUsersTest {
                 .hasNoDuplicates();
     }
 
+    @Test
+    public void mergingGeneratedDatasetMatchesReferenceImplementation() {
+        new TestScenario()
+                .given()
+                .generateShardedDataset(200)
+                .withCompleteUser("alice", "Alice Smith", "alice@example.com")
+                .withUserName("ghost", "Ghost Without Email")
+                .writeTestFiles()
+                .when()
+                .executeScript()
+                .then()
+                .exitCodeIs(0)
+                .matchesReferenceImplementation();
+    }
+
+    @Test
+    public void datasetDescribedBySpecMatchesReferenceImplementation() {
+        new TestScenario()
+                .given()
+                .generateDataset("datasets/production-shaped.properties")
+                .writeTestFiles()
+                .when()
+                .executeScript()
+                .then()
+                .exitCodeIs(0)
+                .hasNoDuplicates()
+                .allUsersHaveCompleteData()
+                .matchesReferenceImplementation();
+    }
+
+    @Test
+    public void generatedUsersReplaceAnEarlierDatasetSpec() {
+        new TestScenario()
+                .given()
+                .generateDataset("datasets/production-shaped.properties")
+                .generateUsers(10)
+                .writeTestFiles()
+                .when()
+                .executeScript()
+                .then()
+                .exitCodeIs(0)
+                .hasUserCount(10)
+                .containsUser("user10")
+                .doesNotContainUser("user11")
+                .matchesReferenceImplementation();
+    }
+
+    @Test
+    public void explicitDataOverridesGeneratedUsers() {
+        new TestScenario()
+                .given()
+                .generateUsers(10)
+                .withUserName("user3", "Carol Override")
+                .withUserEmail("user4", "dave@override.com")
+                .withUser("user5")
+                .withCompleteUser("alice", "Alice Smith", "alice@example.com")
+                .writeTestFiles()
+                .when()
+                .executeScript()
+                .then()
+                .exitCodeIs(0)
+                .containsUserWithData("user3", "Carol Override", "user3@demo.net")
+                .containsUserWithData("user4", "Dave Brown", "dave@override.com")
+                .containsUserWithData("alice", "Alice Smith", "alice@example.com")
+                .hasNoDuplicates()
+                .hasUserCount(11);
+    }
+
+    @Test
+    public void explicitDataOverridesShardedUsers() {
+        new TestScenario()
+                .given()
+                .withSeed(42L)
+                .generateShardedDataset(10)
+                .withUserName("user3", "Carol Override")
+                .withUserEmail("user4", "dave@override.com")
+                .withUser("user5")
+                .withCompleteUser("alice", "Alice Smith", "alice@example.com")
+                .writeTestFiles()
+                .when()
+                .executeScript()
+                .then()
+                .exitCodeIs(0)
+                .containsUserWithData("user3", "Carol Override", "user3@demo.net")
+                .containsUserWithData("user4", "Dave Brown", "dave@override.com")
+                .containsUserWithData("alice", "Alice Smith", "alice@example.com")
+                .hasNoDuplicates()
+                .matchesReferenceImplementation();
+    }
+
     @Test
     public void resultHasValidCsvFormat() {
         new TestScenario()
@@ -119,6 +213,7 @@ public class MergeUsersTest {
     }
 
     @Nested
+    @Isolated("Timings and resource usage are only meaningful while nothing else runs")
     @DisplayName("Non-functional Performance Tests")
     class NonFunctionalTests {
 
@@ -129,10 +224,11 @@ public class MergeUsersTest {
                     .generateUsers(10)
                     .writeTestFiles()
                     .when()
-                    .executeScript()
+                    .measureExecutionTime()
                     .then()
                     .exitCodeIs(0)
-                    .executionTimeWithin(1000L);
+                    .p90Within(1000L)
+                    .hasNoPerformanceRegression();
         }
 
         @Test
@@ -155,6 +251,7 @@ public class MergeUsersTest {
                     .generateUsers(1000)
                     .writeTestFiles()
                     .when()
+                    .withDeadline(10000L)
                     .executeScript()
                     .then()
                     .exitCodeIs(0)
@@ -268,11 +365,285 @@ public class MergeUsersTest {
                     .generateUsers(2000)
                     .writeTestFiles()
                     .when()
+                    .withDeadline(30000L)
                     .executeScript()
                     .then()
                     .exitCodeIs(0)
                     .executionTimeWithin(30000L);
         }
+
+        @Test
+        public void scriptPastItsDeadlineIsKilledWithPartialMetrics() {
+            TestScenario scenario = new TestScenario()
+                    .given()
+                    .generateUsers(2000)
+                    .writeTestFiles()
+                    .when()
+                    .withDeadline(1500L);
+
+            // One jq and one grep per user keep the script busy far beyond the deadline
+            AssertionFailedError failure = Assertions.assertThrows(AssertionFailedError.class,
+                    scenario::executeScript);
+            Assertions.assertTrue(failure.getMessage().contains("exceeded its deadline"), failure.getMessage());
+
+            ScriptRunner.DeadlineExceeded exceeded = scenario.getDeadlineExceeded();
+            Assertions.assertTrue(exceeded.elapsedMs < 3500, "Script should be killed soon after the deadline: "
+                    + exceeded);
+            Assertions.assertTrue(exceeded.resultLines + exceeded.outputLines > 1,
+                    "Users merged or skipped before the kill should be reported: " + exceeded);
+            Assertions.assertTrue(exceeded.resultLines < 2001, "The merge should have been cut short: " + exceeded);
+            Assertions.assertTrue(exceeded.cpuTimeMs > 0, "CPU used before the kill should be reported: " + exceeded);
+            Assertions.assertTrue(exceeded.getSurvivors().isEmpty(),
+                    "No process of the tree should outlive the kill: " + exceeded);
+        }
+
+        @Test
+        public void concurrentInstancesCorruptOnlyASharedOutputPath() {
+            TestScenario scenario = new TestScenario()
+                    .given()
+                    .generateUsers(20)
+                    .writeTestFiles()
+                    .when()
+                    .runConcurrently(3, LoadRunner.OutputMode.ISOLATED)
+                    .then()
+                    .concurrentOutputIsIntact();
+
+            // Each instance truncates data/full_users.csv when it starts and appends to it user by user
+            LoadRunner.Report shared = scenario.when()
+                    .runConcurrently(3, LoadRunner.OutputMode.SHARED)
+                    .getLoadReport();
+            Assertions.assertTrue(shared.allSucceeded(), shared.toString());
+            Assertions.assertTrue(shared.isCorrupted(), "Instances sharing an output path should interleave: "
+                    + shared);
+        }
+
+        @Test
+        public void forkProfileAttributesForksAndCpuToCommands() {
+            TestScenario scenario = new TestScenario()
+                    .given()
+                    .generateUsers(200)
+                    .writeTestFiles()
+                    .when()
+                    .withForkProfile()
+                    .executeScript()
+                    .then()
+                    .exitCodeIs(0)
+                    .hasUserCount(200)
+                    // Two command substitutions, jq and a grep | cut | head pipeline per user, plus a few per run
+                    .forksPerRowAtMost(6.5);
+
+            ForkProfiler.Report profile = scenario.getForkProfile();
+            // Short-lived forks can slip between two samples, so this floor leaves room for some to be missed
+            Assertions.assertTrue(profile.forks >= 4 * 200, "Every user should cost several forks: " + profile);
+            Assertions.assertEquals("jq", profile.commands.stream()
+                    .max(Comparator.comparingLong(command -> command.cpuTimeMs)).orElseThrow().name,
+                    "Parsing users.json once per user should dominate the CPU: " + profile);
+        }
+
+        @Test
+        public void lineProfileFindsTheJqLookupHottest() {
+            TestScenario scenario = new TestScenario()
+                    .given()
+                    .generateUsers(100)
+                    .writeTestFiles()
+                    .when()
+                    .withLineProfile()
+                    .executeScript()
+                    .then()
+                    .exitCodeIs(0)
+                    .hasUserCount(100)
+                    // name=$(jq ...), run once per user
+                    .hottestLineIs(27);
+
+            LineProfiler.Report profile = scenario.getLineProfile();
+            Assertions.assertTrue(profile.getLine(27).count >= 100, "jq should be traced for every user: " + profile);
+            Assertions.assertTrue(profile.getShare(27) > 0.5, "jq should take most of the run: " + profile);
+        }
+
+        @Test
+        public void throughputIsReportedInRowsAndBytes() {
+            TestScenario scenario = new TestScenario()
+                    .given()
+                    .generateUsers(50)
+                    .writeTestFiles()
+                    .when()
+                    .executeScript()
+                    .then()
+                    .exitCodeIs(0)
+                    .throughputAtLeast(5);
+
+            ScriptRunner.Throughput throughput = scenario.getThroughput();
+            Assertions.assertEquals(50, throughput.rowsIn, throughput.toString());
+            Assertions.assertEquals(3, throughput.inputs.size(), throughput.toString());
+            Assertions.assertEquals(scenario.getUserCount(), throughput.rowsOut, throughput.toString());
+            Assertions.assertTrue(throughput.getMegabytesOutPerSecond() > 0, throughput.toString());
+        }
+
+        @Test
+        public void capacitySearchBracketsTheLargestDatasetWithinBudget() {
+            CapacitySearch.Result capacity = new TestScenario()
+                    .when()
+                    .findCapacityWithin(1000L)
+                    .then()
+                    .getCapacity();
+
+            // How many users fit in the budget depends on the host, so only the search itself is checked
+            Assertions.assertTrue(capacity.capacity > 0 && capacity.firstOverBudget != Long.MAX_VALUE,
+                    "The search should bracket the capacity: " + capacity);
+            Assertions.assertTrue(capacity.probes.stream().anyMatch(probe -> probe.size == capacity.capacity
+                    && probe.exitCode == 0 && !probe.killed && probe.elapsedMs <= 1000L),
+                    "The capacity should be a size that was probed within budget: " + capacity);
+            Assertions.assertTrue(capacity.probes.stream().anyMatch(probe -> probe.size == capacity.firstOverBudget
+                    && (probe.killed || probe.elapsedMs > 1000L)),
+                    "The first size over budget should be a size that was probed over it: " + capacity);
+            Assertions.assertTrue(capacity.firstOverBudget <= capacity.capacity * 1.05 + 1,
+                    "The search should narrow down to within 5%: " + capacity);
+            Assertions.assertTrue(capacity.probes.stream().allMatch(probe -> probe.elapsedMs < 1000L + 2000L),
+                    "Probes over budget should be killed at it: " + capacity);
+        }
+
+        @Test
+        public void shardedDatasetIsReproducibleRegardlessOfCoreCount() {
+            String singleCore = new TestScenario()
+                    .given()
+                    .withSeed(42L)
+                    .withParallelism(1)
+                    .generateShardedDataset(100_000)
+                    .withCompleteUser("alice", "Alice Smith", "alice@example.com")
+                    .writeTestFiles()
+                    .getGeneratedDataChecksum();
+
+            String multiCore = new TestScenario()
+                    .given()
+                    .withSeed(42L)
+                    .withParallelism(8)
+                    .generateShardedDataset(100_000)
+                    .withCompleteUser("alice", "Alice Smith", "alice@example.com")
+                    .writeTestFiles()
+                    .getGeneratedDataChecksum();
+
+            Assertions.assertEquals(singleCore, multiCore,
+                    "Same seed should produce byte-identical datasets");
+        }
+
+        @Test
+        public void referenceImplementationMergesMillionUsersInLinearTime() {
+            new TestScenario()
+                    .given()
+                    .withSeed(42L)
+                    .generateShardedDataset(1_000_000)
+                    .writeTestFiles()
+                    .when()
+                    .executeReferenceImplementation()
+                    .then()
+                    .inOnePass(then -> then
+                            .fileExists()
+                            .hasValidCsvFormat()
+                            .hasNoDuplicates())
+                    .referenceExecutionTimeWithin(20000L);
+        }
+
+        @Test
+        public void generatedUsersAreStreamedToDiskWithoutBeingHeld() {
+            new TestScenario()
+                    .given()
+                    .withSeed(42L)
+                    .generateLargeDataset(2_000_000)
+                    .withUserEmail("user7", "grace@override.com")
+                    .withCompleteUser("explicit_zoe", "Zoe Adams", "zoe@example.com")
+                    .writeTestFiles()
+                    .when()
+                    .executeReferenceImplementation()
+                    .then()
+                    .inOnePass(then -> then
+                            .containsUserWithData("user7", "Grace Davis", "grace@override.com")
+                            .containsUserWithData("explicit_zoe", "Zoe Adams", "zoe@example.com")
+                            .containsUserWithData("user2000000", "Jack Martinez", "user2000000@sample.io")
+                            .hasNoDuplicates()
+                            .allUsersHaveCompleteData());
+        }
+
+        @Test
+        public void chainedAssertionsShareOneReadOfTheOutput() {
+            TestScenario scenario = new TestScenario()
+                    .given()
+                    .withSeed(42L)
+                    .generateShardedDataset(200_000)
+                    .withCompleteUser("batched_alice", "Alice Smith", "alice@example.com")
+                    .writeTestFiles()
+                    .when()
+                    .executeReferenceImplementation()
+                    .then()
+                    .inOnePass(then -> then
+                            .fileExists()
+                            .hasValidCsvFormat()
+                            .hasNoDuplicates()
+                            .allUsersHaveCompleteData()
+                            .containsUser("batched_alice")
+                            .containsUserWithData("batched_alice", "Alice Smith", "alice@example.com")
+                            .doesNotContainUser("batched_nobody"));
+
+            Assertions.assertEquals(1, scenario.getOutputScans(),
+                    "All batched assertions should be answered by a single read of full_users.csv");
+        }
+
+        @Test
+        public void failingOutputAssertionFailsWhereItIsMade() {
+            TestScenario scenario = new TestScenario()
+                    .given()
+                    .withSeed(42L)
+                    .generateShardedDataset(1_000)
+                    .writeTestFiles()
+                    .when()
+                    .executeReferenceImplementation()
+                    .then();
+
+            Assertions.assertThrows(AssertionError.class, () -> scenario.containsUser("missing_user"),
+                    "An output assertion should fail as it is called, with no terminal call or extension");
+            Assertions.assertThrows(AssertionError.class, () -> scenario.inOnePass(then -> then
+                            .hasNoDuplicates()
+                            .containsUser("missing_user")),
+                    "A batch should fail before inOnePass() returns");
+            Assertions.assertEquals(2, scenario.getOutputScans(),
+                    "Each call should read full_users.csv once");
+        }
+
+        @Test
+        public void seededDatasetIsServedFromCacheOnRepeat() {
+            String generated = new TestScenario()
+                    .given()
+                    .withSeed(4242L)
+                    .generateShardedDataset(100_000)
+                    .writeTestFiles()
+                    .getGeneratedDataChecksum();
+
+            TestScenario repeated = new TestScenario()
+                    .given()
+                    .withSeed(4242L)
+                    .generateShardedDataset(100_000)
+                    .writeTestFiles();
+            Assertions.assertTrue(repeated.isDatasetCacheHit(),
+                    "Same seed and size should be served from the dataset cache");
+            Assertions.assertEquals(generated, repeated.getGeneratedDataChecksum(),
+                    "Cached dataset should be byte-identical to the generated one");
+        }
+
+        @Test
+        public void boundedOutputCaptureKeepsLineCounts() {
+            TestScenario scenario = new TestScenario().given();
+            for (int i = 0; i < 40; i++) {
+                scenario.withUser("ghost" + i);
+            }
+
+            scenario.writeTestFiles()
+                    .when()
+                    .withOutputLimit(5, 5)
+                    .executeScript()
+                    .then()
+                    .exitCodeIs(0)
+                    .outputLineCountIs(41)
+                    .hasUserCount(0);
+        }
     }
 
     @Nested
@@ -281,14 +652,15 @@ public class MergeUsersTest {
 
         @Test
         public void missingUsersFileProducesError() {
-            new TestScenario()
+            TestScenario scenario = new TestScenario();
+            scenario
                     .given()
                     .withCompleteUser("alice", "Alice Smith", "alice@example.com")
                     .writeTestFiles()
                     .when()
                     .executeScript("nonexistent.txt",
-                            System.getProperty("user.dir") + "/data/users.json",
-                            System.getProperty("user.dir") + "/data/users.csv")
+                            scenario.getDataFile("users.json"),
+                            scenario.getDataFile("users.csv"))
                     .then()
                     .exitCodeIs(1)
                     .containsError("not found");
@@ -296,14 +668,15 @@ public class MergeUsersTest {
 
         @Test
         public void missingJsonFileProducesError() {
-            new TestScenario()
+            TestScenario scenario = new TestScenario();
+            scenario
                     .given()
                     .withCompleteUser("alice", "Alice Smith", "alice@example.com")
                     .writeTestFiles()
                     .when()
-                    .executeScript(System.getProperty("user.dir") + "/data/users.txt",
+                    .executeScript(scenario.getDataFile("users.txt"),
                             "nonexistent.json",
-                            System.getProperty("user.dir") + "/data/users.csv")
+                            scenario.getDataFile("users.csv"))
                     .then()
                     .exitCodeIs(1)
                     .containsError("not found");
@@ -311,13 +684,14 @@ public class MergeUsersTest {
 
         @Test
         public void missingCsvFileProducesError() {
-            new TestScenario()
+            TestScenario scenario = new TestScenario();
+            scenario
                     .given()
                     .withCompleteUser("alice", "Alice Smith", "alice@example.com")
                     .writeTestFiles()
                     .when()
-                    .executeScript(System.getProperty("user.dir") + "/data/users.txt",
-                            System.getProperty("user.dir") + "/data/users.json",
+                    .executeScript(scenario.getDataFile("users.txt"),
+                            scenario.getDataFile("users.json"),
                             "nonexistent.csv")
                     .then()
                     .exitCodeIs(1)